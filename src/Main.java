@@ -1,14 +1,26 @@
 import nallar.leagueskin.FileManager;
 import nallar.leagueskin.SkinPack;
+import nallar.leagueskin.SkinWatcher;
 import nallar.leagueskin.riotfiles.ReleaseManifest;
 import nallar.leagueskin.util.PathUtil;
 
+import java.nio.file.*;
+
 public class Main {
+	/**
+	 * Installs the skins folder, then with the watch argument keeps installing changes to it until stopped
+	 */
 	public static void main(String[] args) {
 		try {
 			//noinspection ResultOfMethodCallIgnored
 			ReleaseManifest.INSTANCE.hashCode(); //Force instance to be instantiated by loading class.
-			new FileManager(PathUtil.filearchivesDirectory(), PathUtil.airDeployDirectory()).installSkinPack(new SkinPack(PathUtil.dataDir().resolve("Skins")));
+			Path skins = PathUtil.dataDir().resolve("Skins");
+			FileManager fileManager = new FileManager(PathUtil.filearchivesDirectory(), PathUtil.airDeployDirectory());
+			SkinPack skinPack = new SkinPack(skins);
+			fileManager.installSkinPack(skinPack);
+			if (args.length > 0 && args[0].equalsIgnoreCase("watch")) {
+				new SkinWatcher(fileManager, skinPack, skins).run();
+			}
 		} catch (Throwable t) {
 			t.printStackTrace();
 		}
@@ -28,7 +28,7 @@ public class Backups {
 		return location.resolve(PathUtil.canonical(path));
 	}
 
-	public byte[] getBytes(String path) {
+	public synchronized byte[] getBytes(String path) {
 		path = PathUtil.canonical(path);
 		if (!backupNames.contains(path)) {
 			throw new RuntimeException("No backup for " + path);
@@ -40,7 +40,7 @@ public class Backups {
 		}
 	}
 
-	public void setBytes(String path, byte[] bytes) {
+	public synchronized void setBytes(String path, byte[] bytes) {
 		path = PathUtil.canonical(path);
 		if (!backupNames.add(path)) {
 			Log.trace("Not backing up " + path + ", already saved");
@@ -55,7 +55,7 @@ public class Backups {
 		}
 	}
 
-	public void delete(String path) {
+	public synchronized void delete(String path) {
 		path = PathUtil.canonical(path);
 		if (!backupNames.remove(path)) {
 			throw new RuntimeException("No backup for " + path);
@@ -90,7 +90,36 @@ public class Backups {
 		};
 	}
 
-	public void finish() {
+	/**
+	 * Deletes a backup which no longer matches the original file, eg because a game patch changed it
+	 */
+	public synchronized void invalidate(String path) {
+		path = PathUtil.canonical(path);
+		if (!backupNames.remove(path)) {
+			return;
+		}
+		Path target = pathFromString(path);
+		deletions.remove(target);
+		try {
+			Files.deleteIfExists(target);
+		} catch (IOException e) {
+			throw Throw.sneaky(e);
+		}
+	}
+
+	/**
+	 * Cancels pending deletions of the given backups, eg because restoring them failed
+	 */
+	public synchronized void keep(Collection<String> paths) {
+		for (String path : paths) {
+			path = PathUtil.canonical(path);
+			if (deletions.remove(pathFromString(path))) {
+				backupNames.add(path);
+			}
+		}
+	}
+
+	public synchronized void finish() {
 		for (Path p : deletions) {
 			if (!Files.exists(p)) {
 				throw new RuntimeException(p + " should exist to delete");
@@ -104,7 +133,7 @@ public class Backups {
 		deletions.clear();
 	}
 
-	public boolean has(String match) {
+	public synchronized boolean has(String match) {
 		return backupNames.contains(PathUtil.canonical(match));
 	}
 }
@@ -4,6 +4,7 @@ import nallar.leagueskin.models.ModelTransfer;
 import nallar.leagueskin.models.Obj;
 import nallar.leagueskin.models.Skn;
 import nallar.leagueskin.riotfiles.FileEntry;
+import nallar.leagueskin.riotfiles.FileSource;
 import nallar.leagueskin.riotfiles.ReleaseManifest;
 import nallar.leagueskin.util.PathUtil;
 
@@ -11,8 +12,6 @@ import java.io.*;
 import java.nio.*;
 import java.nio.file.*;
 import java.util.*;
-import java.util.regex.*;
-import java.util.stream.*;
 
 public class DevUtil {
 	public static void main(String[] args) {
@@ -32,9 +31,12 @@ public class DevUtil {
 				extractObjMatches = true;
 			}
 		}
-		Pattern p = matcher.isEmpty() ? null : Pattern.compile(matcher, Pattern.CASE_INSENSITIVE);
-		Stream<String> matches = ReleaseManifest.INSTANCE.getFileNames().stream().filter(s -> p == null || p.matcher(s).find());
+		// @file reads one pattern per line, see PathQuery
+		PathQuery query = matcher.startsWith("@") ? PathQuery.fromFile(Paths.get(matcher.substring(1))) : new PathQuery(Collections.singletonList(matcher));
 		FileManager fileManager = new FileManager(PathUtil.filearchivesDirectory(), PathUtil.airDeployDirectory());
+		List<String> paths = new ArrayList<>(ReleaseManifest.INSTANCE.getFileNames());
+		paths.addAll(fileManager.getAllPaths());
+		PathQuery.Index index = new PathQuery.Index(paths);
 
 		try {
 			Files.createDirectories(PathUtil.dataDir().resolve("extract/"));
@@ -45,12 +47,16 @@ public class DevUtil {
 
 		final boolean finalExtractObjMatches = extractObjMatches;
 		final boolean finalExtractMatches = extractMatches;
-		matches.forEach((match) -> {
-			Log.info(match + (Backups.INSTANCE.has(match) ? " - replaced with custom skin" : ""));
+		query.run(index, (match) -> {
+			FileSource source = fileManager.getSource(match);
+			Log.info(match + (source == null ? " - not in any archive" : " in " + source) + (Backups.INSTANCE.has(match) ? " - replaced with custom skin" : ""));
 			FileEntry entry = fileManager.getEntry(match);
+			if (entry == null) {
+				return;
+			}
 			if (finalExtractMatches) {
-				try {
-					Files.write(PathUtil.dataDir().resolve("extract/" + entry.getFileName()), entry.getDecompressedBytes());
+				try (InputStream in = entry.openDecompressedStream()) {
+					Files.copy(in, PathUtil.dataDir().resolve("extract/" + entry.getFileName()), StandardCopyOption.REPLACE_EXISTING);
 				} catch (Exception e) {
 					throw new RuntimeException("Error extracting " + entry.getFileName(), e);
 				}
@@ -5,17 +5,27 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import nallar.leagueskin.riotfiles.*;
+import nallar.leagueskin.util.PathUtil;
 import nallar.leagueskin.util.Throw;
 
 import java.io.*;
+import java.nio.charset.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class FileManager {
 	private final List<FileSource> fileSourceList = new ArrayList<>();
 	private final HashMultimap<String, String> shortNamesToLong = HashMultimap.create();
+	// Lowercase short names by extension, sorted so names with a given prefix are adjacent
+	private final Map<String, String[]> sortedShortNames = new HashMap<>();
 	private final Map<String, FileEntry> entries = Maps.newHashMap();
+	// Source each full path was found in
+	private final Map<String, FileSource> sources = Maps.newHashMap();
+	// Device each source is stored on, updates are limited per device
+	private final Map<FileSource, Object> devices = Maps.newHashMap();
 	private final FileStatusManager fileStatusManager = new FileStatusManager();
 
 	private static LoadingCache<String, ReplacementGeneratorWrapper> newReplacementsCache() {
@@ -28,8 +38,18 @@ public class FileManager {
 	}
 
 	public FileManager(Path rafDirectory, Path airDirectory) {
-		recursiveSearch(rafDirectory, 0);
-		fileSourceList.add(new AirFileSource(airDirectory));
+		List<Path> rafLocations = new ArrayList<>();
+		recursiveSearch(rafDirectory, 0, rafLocations);
+		// Sorted so sources are always merged in the same order, whichever finishes parsing first
+		Collections.sort(rafLocations);
+		List<Raf> rafs = openRafs(rafLocations);
+		for (int i = 0; i < rafs.size(); i++) {
+			devices.put(rafs.get(i), device(rafLocations.get(i)));
+		}
+		fileSourceList.addAll(rafs);
+		AirFileSource airFileSource = new AirFileSource(airDirectory);
+		devices.put(airFileSource, device(airDirectory));
+		fileSourceList.add(airFileSource);
 
 		for (FileSource fileSource : fileSourceList) {
 			for (FileEntry entry : fileSource.getEntries()) {
@@ -37,8 +57,18 @@ public class FileManager {
 					throw new Error("Duplicate file " + entry.getFileName() + " in " + fileSource.toString() + " " + entry.getPath());
 				}
 				entries.put(entry.getPath(), entry);
+				sources.put(entry.getPath(), fileSource);
 			}
 		}
+		Map<String, List<String>> shortNamesByExtension = new HashMap<>();
+		for (String shortName : shortNamesToLong.keySet()) {
+			shortNamesByExtension.computeIfAbsent(extension(shortName), k -> new ArrayList<>()).add(shortName);
+		}
+		shortNamesByExtension.forEach((extension, shortNames) -> {
+			String[] sorted = shortNames.toArray(new String[shortNames.size()]);
+			Arrays.sort(sorted);
+			sortedShortNames.put(extension, sorted);
+		});
 		ReleaseManifest.INSTANCE.sanityCheck();
 	}
 
@@ -53,7 +83,8 @@ public class FileManager {
 		});
 
 		LoadingCache<String, ReplacementGeneratorWrapper> efficientReplacements = newReplacementsCache();
-		fileStatusManager.findChangedStatus(replacements, efficientReplacements);
+		Set<String> patched = findPatchedFiles();
+		fileStatusManager.findChangedStatus(replacements, efficientReplacements, patched);
 
 		if (efficientReplacements.size() == 0) {
 			Log.info("No files need updated");
@@ -62,11 +93,138 @@ public class FileManager {
 			sb.append("Updating ").append(efficientReplacements.size()).append(" files:");
 			efficientReplacements.asMap().forEach((name, replacement) -> sb.append('\n').append(name.startsWith("/DATA/") ? name.substring(6) : name));
 			Log.info(sb.toString());
-			fileSourceList.forEach((raf) -> raf.update(efficientReplacements.asMap()));
+			List<String> failed = update(efficientReplacements.asMap());
+			ReleaseManifest.INSTANCE.force();
+			if (!failed.isEmpty()) {
+				// Not recorded as installed, so they are tried again next time
+				fileStatusManager.keepLastStatus(failed);
+				Backups.INSTANCE.keep(failed);
+				// Unchanged status isn't enough to retry these, the patch is only reported once
+				List<String> failedPatched = new ArrayList<>(failed);
+				failedPatched.retainAll(patched);
+				fileStatusManager.forget(failedPatched);
+			}
 		}
 
 		fileStatusManager.saveStatus();
 		Backups.INSTANCE.finish();
+		PayloadCache.INSTANCE.finish();
+		recordRelease();
+	}
+
+	/**
+	 * Finds replaced files which a game patch has changed since the last install, and deletes their backups as
+	 * the patch replaced the originals
+	 */
+	private Set<String> findPatchedFiles() {
+		Path currentManifest = ReleaseManifest.INSTANCE.getLocation().toAbsolutePath();
+		Path previousManifest = lastRelease();
+		if (previousManifest == null || previousManifest.equals(currentManifest)) {
+			return Collections.emptySet();
+		}
+		Set<String> installed = fileStatusManager.getInstalledFiles();
+		Set<String> patched;
+		if (Files.exists(previousManifest)) {
+			ManifestDiff diff = new ManifestDiff(ReleaseManifest.openReadOnly(ReleaseManifest.pristineLocation(previousManifest)), ReleaseManifest.openReadOnly(ReleaseManifest.pristineLocation(currentManifest)));
+			patched = diff.changed(installed);
+		} else {
+			Log.warn("Can't compare with " + previousManifest + ", it was removed. Assuming every replaced file changed.");
+			patched = installed;
+		}
+		Log.info("Game updated since last install, " + patched.size() + " of " + installed.size() + " replaced files changed");
+		for (String fullName : patched) {
+			Backups.INSTANCE.invalidate(fullName);
+		}
+		return patched;
+	}
+
+	private static Path lastReleaseLocation() {
+		return PathUtil.configDir().resolve("lastRelease");
+	}
+
+	private static Path lastRelease() {
+		Path location = lastReleaseLocation();
+		if (!Files.exists(location)) {
+			return null;
+		}
+		try {
+			return Paths.get(new String(Files.readAllBytes(location), StandardCharsets.UTF_8).trim());
+		} catch (IOException e) {
+			throw Throw.sneaky(e);
+		}
+	}
+
+	private static void recordRelease() {
+		try {
+			Files.createDirectories(lastReleaseLocation().getParent());
+			Files.write(lastReleaseLocation(), ReleaseManifest.INSTANCE.getLocation().toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			throw Throw.sneaky(e);
+		}
+	}
+
+	/**
+	 * Updates every source concurrently, limited to leagueskin.install.parallelism sources at once per device.
+	 * A source which fails to update is logged and does not stop the others.
+	 *
+	 * @return full names of replacements in sources which failed to update
+	 */
+	private List<String> update(Map<String, ReplacementGeneratorWrapper> replacements) {
+		int parallelism = Integer.getInteger("leagueskin.install.parallelism", 2);
+		// A pool per device, so sources waiting on a busy device never hold threads another device could use
+		Map<Object, ExecutorService> executors = new HashMap<>();
+		Map<FileSource, Map<String, ReplacementGeneratorWrapper>> replacementsBySource = new HashMap<>();
+		replacements.forEach((fullName, replacement) -> replacementsBySource.computeIfAbsent(sources.get(fullName), k -> new HashMap<>()).put(fullName, replacement));
+		Set<FileSource> failedSources = new HashSet<>();
+		try {
+			Map<FileSource, Future<?>> futures = new LinkedHashMap<>();
+			for (FileSource fileSource : fileSourceList) {
+				Map<String, ReplacementGeneratorWrapper> sourceReplacements = replacementsBySource.get(fileSource);
+				if (sourceReplacements == null) {
+					continue;
+				}
+				ExecutorService executor = executors.computeIfAbsent(devices.get(fileSource), k -> Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder().setNameFormat("Install-" + executors.size() + "-%d").build()));
+				futures.put(fileSource, executor.submit(() -> {
+					fileSource.update(sourceReplacements);
+					return null;
+				}));
+			}
+			for (Map.Entry<FileSource, Future<?>> e : futures.entrySet()) {
+				try {
+					e.getValue().get();
+				} catch (ExecutionException ex) {
+					Log.error("Failed to update " + e.getKey(), ex.getCause());
+					failedSources.add(e.getKey());
+				} catch (InterruptedException ex) {
+					throw Throw.sneaky(ex);
+				}
+			}
+		} finally {
+			executors.values().forEach(ExecutorService::shutdownNow);
+		}
+
+		List<String> failed = new ArrayList<>();
+		for (String fullName : replacements.keySet()) {
+			if (failedSources.contains(sources.get(fullName))) {
+				failed.add(fullName);
+			}
+		}
+		if (!failedSources.isEmpty()) {
+			Log.warn(failedSources.size() + " of " + fileSourceList.size() + " sources failed to update, " + failed.size() + " files will be retried next install");
+		}
+		return failed;
+	}
+
+	/**
+	 * @return key identifying the device the given path is stored on
+	 */
+	private static Object device(Path path) {
+		try {
+			return Files.getFileStore(path);
+		} catch (IOException e) {
+			Log.warn("Failed to find file store for " + path, e);
+			return path.getRoot();
+		}
 	}
 
 	public Collection<String> getFullNames(String shortName, Path realPath) {
@@ -94,8 +252,11 @@ public class FileManager {
 			names = new ArrayList<>();
 			String extension = shortName.substring(shortName.indexOf('.'));
 			String start = shortName.substring(0, shortName.indexOf('^'));
-			for (String name : shortNamesToLong.keySet()) {
-				if (name.startsWith(start) && name.endsWith(extension)) {
+			String[] candidates = sortedShortNames.getOrDefault(extension(extension), new String[0]);
+			int first = Arrays.binarySearch(candidates, start);
+			for (int i = first < 0 ? -first - 1 : first; i < candidates.length && candidates[i].startsWith(start); i++) {
+				String name = candidates[i];
+				if (name.endsWith(extension)) {
 					int c = name.charAt(start.length());
 					boolean matched = c == '.';
 					if (!matched && c == '_') {
@@ -127,7 +288,7 @@ public class FileManager {
 					match = match.replace('.', '/').toLowerCase() + (immediateEnding ? '/' + shortName : "");
 					List<String> newNames = new ArrayList<>();
 					for (String name : names) {
-						if (name.toLowerCase().contains(match)) {
+						if (containsIgnoreCase(name, match)) {
 							newNames.add(name);
 						}
 					}
@@ -145,16 +306,36 @@ public class FileManager {
 		return names;
 	}
 
-	private void recursiveSearch(Path path, int depth) {
+	/**
+	 * @return the last extension of a name including the ., or an empty string if there is none
+	 */
+	private static String extension(String name) {
+		int index = name.lastIndexOf('.');
+		return index == -1 ? "" : name.substring(index);
+	}
+
+	/**
+	 * @param lowerCasePart must already be lowercase
+	 */
+	private static boolean containsIgnoreCase(String name, String lowerCasePart) {
+		for (int i = 0; i + lowerCasePart.length() <= name.length(); i++) {
+			if (name.regionMatches(true, i, lowerCasePart, 0, lowerCasePart.length())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void recursiveSearch(Path path, int depth, List<Path> rafLocations) {
 		if (depth > 1) {
 			return;
 		}
 		try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
 			for (Path entry : stream) {
 				if (Files.isDirectory(entry)) {
-					recursiveSearch(entry, depth + 1);
+					recursiveSearch(entry, depth + 1, rafLocations);
 				} else if (entry.toString().endsWith(".raf")) {
-					fileSourceList.add(new Raf(entry));
+					rafLocations.add(entry);
 				}
 			}
 		} catch (IOException e) {
@@ -162,7 +343,53 @@ public class FileManager {
 		}
 	}
 
+	/**
+	 * Opens and indexes RAFs on a bounded pool
+	 *
+	 * @return opened RAFs, in the same order as the given locations
+	 */
+	private static List<Raf> openRafs(List<Path> rafLocations) {
+		if (rafLocations.isEmpty()) {
+			return Collections.emptyList();
+		}
+		int threads = Math.min(rafLocations.size(), Integer.getInteger("leagueskin.fileManager.threads", Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Raf>> futures = new ArrayList<>();
+			for (Path location : rafLocations) {
+				futures.add(executor.submit(() -> new Raf(location)));
+			}
+			List<Raf> rafs = new ArrayList<>();
+			for (Future<Raf> future : futures) {
+				try {
+					rafs.add(future.get());
+				} catch (ExecutionException e) {
+					throw Throw.sneaky(e.getCause());
+				} catch (InterruptedException e) {
+					throw Throw.sneaky(e);
+				}
+			}
+			return rafs;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
 	public FileEntry getEntry(String match) {
 		return entries.get(match);
 	}
+
+	/**
+	 * @return the source containing the given full path, or null if none do
+	 */
+	public FileSource getSource(String fullName) {
+		return sources.get(fullName);
+	}
+
+	/**
+	 * @return full paths of every file in every source
+	 */
+	public Set<String> getAllPaths() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
 }
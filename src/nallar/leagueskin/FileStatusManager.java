@@ -2,27 +2,113 @@ package nallar.leagueskin;
 
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import nallar.leagueskin.util.PathUtil;
 import nallar.leagueskin.util.Throw;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.nio.file.*;
+import java.nio.file.attribute.*;
 import java.util.*;
+import java.util.concurrent.*;
 
+/**
+ * Tracks the skin files each installed replacement was generated from, so only replacements whose files changed are
+ * installed again.
+ * <p>
+ * Files are compared by size, modification and creation time, and file key where the platform has one, eg inode.
+ * When those change but the size does not, the contents are compared by a murmur3 hash instead, so touching or copying
+ * a file over itself doesn't cause a reinstall.
+ * Hashes are only computed for new or changed files, on a bounded pool.
+ * <p>
+ * Stored in config/fileStatus.bin as a log of records, each replacing the previous record for its file. Saving
+ * appends records for the replacements which changed, and only rewrites the file once most of it is stale.
+ */
 public class FileStatusManager {
-	private ArrayListMultimap<String, FileStatus> currentStatus = ArrayListMultimap.create();
-	private ArrayListMultimap<String, FileStatus> lastStatus = ArrayListMultimap.create();
+	private static final int MAGIC = 0x4C534653; // LSFS
+	private static final int VERSION = 1;
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final HashFunction contentHash = Hashing.murmur3_128();
+	private ArrayListMultimap<String, SourceStatus> currentStatus = ArrayListMultimap.create();
+	private ArrayListMultimap<String, SourceStatus> lastStatus = ArrayListMultimap.create();
 	private final Path fileStatusLocation;
+	private final Path legacyLocation;
+	// Records in the status file, including replaced ones, or -1 if it must be rewritten
+	private int storedRecords = -1;
 
 	public FileStatusManager() {
-		fileStatusLocation = PathUtil.configDir().resolve("fileStatus.config");
+		fileStatusLocation = PathUtil.configDir().resolve("fileStatus.bin");
+		legacyLocation = PathUtil.configDir().resolve("fileStatus.config");
 		if (Files.exists(fileStatusLocation)) {
-			try (ObjectInputStream o = new ObjectInputStream(new FileInputStream(fileStatusLocation.toFile()))) {
-				lastStatus = (ArrayListMultimap<String, FileStatus>) o.readObject();
+			try {
+				load();
 			} catch (Throwable t) {
-				System.out.println("Failed to read last file status");
-				t.printStackTrace();
+				Log.error("Failed to read last file status", t);
+				lastStatus = ArrayListMultimap.create();
+				storedRecords = -1;
 			}
+		} else if (Files.exists(legacyLocation)) {
+			loadLegacy();
+		}
+	}
+
+	private void load() throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(fileStatusLocation)));
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException("Not a file status store, or from a different version");
+		}
+		int records = 0;
+		while (in.available() > 0) {
+			// A record cut off by an interrupted save is dropped, and the file rewritten next save
+			if (in.available() < 4) {
+				records = -1;
+				break;
+			}
+			int length = in.readInt();
+			if (in.available() < length) {
+				records = -1;
+				break;
+			}
+			byte type = in.readByte();
+			String key = in.readUTF();
+			switch (type) {
+				case PUT:
+					List<SourceStatus> statuses = new ArrayList<>();
+					int count = in.readInt();
+					for (int i = 0; i < count; i++) {
+						statuses.add(SourceStatus.read(in));
+					}
+					lastStatus.replaceValues(key, statuses);
+					break;
+				case REMOVE:
+					lastStatus.removeAll(key);
+					break;
+				default:
+					throw new IOException("Unknown file status record type " + type);
+			}
+			records++;
+		}
+		storedRecords = records;
+	}
+
+	/**
+	 * Reads the serialized status written by older versions. It has no paths or hashes, so entries are compared by
+	 * position, size and modification time until each replacement is next installed.
+	 */
+	@SuppressWarnings("unchecked")
+	private void loadLegacy() {
+		try (ObjectInputStream o = new ObjectInputStream(new FileInputStream(legacyLocation.toFile()))) {
+			ArrayListMultimap<String, FileStatus> legacy = (ArrayListMultimap<String, FileStatus>) o.readObject();
+			for (Map.Entry<String, FileStatus> e : legacy.entries()) {
+				lastStatus.put(e.getKey(), new SourceStatus(null, e.getValue().size, e.getValue().date, -1, 0, false, 0));
+			}
+			Log.info("Migrating " + legacyLocation + " to " + fileStatusLocation);
+		} catch (Throwable t) {
+			Log.error("Failed to read last file status", t);
 		}
 	}
 
@@ -32,40 +118,210 @@ public class FileStatusManager {
 		} catch (IOException e) {
 			throw Throw.sneaky(e);
 		}
-		try (ObjectOutputStream o = new ObjectOutputStream(new FileOutputStream(fileStatusLocation.toFile()))) {
-			o.writeObject(currentStatus);
+		List<String> changed = new ArrayList<>();
+		for (String key : currentStatus.keySet()) {
+			if (!currentStatus.get(key).equals(lastStatus.get(key))) {
+				changed.add(key);
+			}
+		}
+		for (String key : lastStatus.keySet()) {
+			if (!currentStatus.containsKey(key)) {
+				changed.add(key);
+			}
+		}
+		try {
+			if (storedRecords == -1 || storedRecords + changed.size() > Math.max(64, currentStatus.keySet().size() * 2)) {
+				rewrite();
+			} else if (!changed.isEmpty()) {
+				append(changed);
+			}
+			Files.deleteIfExists(legacyLocation);
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.error("Failed to save file status to " + fileStatusLocation, e);
+			// Unknown how much was written
+			storedRecords = -1;
 		}
 		lastStatus = currentStatus;
 		currentStatus = ArrayListMultimap.create();
 	}
 
-	public void findChangedStatus(LoadingCache<String, ReplacementGeneratorWrapper> allReplacements, LoadingCache<String, ReplacementGeneratorWrapper> changedReplacements) {
+	private void rewrite() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		List<String> keys = new ArrayList<>(currentStatus.keySet());
+		Collections.sort(keys);
+		for (String key : keys) {
+			writeRecord(out, key);
+		}
+		Path temporary = Paths.get(fileStatusLocation.toString() + ".tmp");
+		Files.write(temporary, bytes.toByteArray());
+		Files.move(temporary, fileStatusLocation, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		storedRecords = keys.size();
+	}
+
+	private void append(List<String> keys) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (String key : keys) {
+			writeRecord(out, key);
+		}
+		try (FileChannel channel = FileChannel.open(fileStatusLocation, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			ByteBuffer b = ByteBuffer.wrap(bytes.toByteArray());
+			while (b.hasRemaining()) {
+				channel.write(b);
+			}
+			channel.force(false);
+		}
+		storedRecords += keys.size();
+	}
+
+	private void writeRecord(DataOutputStream out, String key) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		List<SourceStatus> statuses = currentStatus.get(key);
+		if (statuses.isEmpty()) {
+			record.writeByte(REMOVE);
+			record.writeUTF(key);
+		} else {
+			record.writeByte(PUT);
+			record.writeUTF(key);
+			record.writeInt(statuses.size());
+			for (SourceStatus status : statuses) {
+				status.write(record);
+			}
+		}
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+	}
+
+	/**
+	 * Records the given files as they were after the last install, eg because they failed to update
+	 */
+	public void keepLastStatus(Collection<String> keys) {
+		for (String key : keys) {
+			currentStatus.replaceValues(key, lastStatus.get(key));
+		}
+	}
+
+	/**
+	 * Records the given files as not installed, so they are installed again next time
+	 */
+	public void forget(Collection<String> keys) {
+		for (String key : keys) {
+			currentStatus.removeAll(key);
+		}
+	}
+
+	/**
+	 * @return full names of files replaced by the last install
+	 */
+	public Set<String> getInstalledFiles() {
+		return new HashSet<>(lastStatus.keySet());
+	}
+
+	/**
+	 * @param patched files changed by a game patch since the last install. Their replacements are installed again,
+	 *                and files which are no longer replaced are left as patched rather than restored from backup.
+	 */
+	public void findChangedStatus(LoadingCache<String, ReplacementGeneratorWrapper> allReplacements, LoadingCache<String, ReplacementGeneratorWrapper> changedReplacements, Set<String> patched) {
+		// Left partly filled if a previous install failed before saving, eg in watch mode
+		currentStatus = ArrayListMultimap.create();
+		Map<String, SourceStatus> lastByPath = new HashMap<>();
+		for (SourceStatus status : lastStatus.values()) {
+			if (status.path != null) {
+				lastByPath.put(status.path, status);
+			}
+		}
+		// Each skin file is checked once, however many replacements use it
+		Map<Path, SourceStatus> statuses = new HashMap<>();
+		List<Path> toHash = new ArrayList<>();
+		for (ReplacementGeneratorWrapper replacement : allReplacements.asMap().values()) {
+			for (Path p : replacement.getPaths()) {
+				if (statuses.containsKey(p)) {
+					continue;
+				}
+				SourceStatus last = lastByPath.get(p.toString());
+				SourceStatus status = SourceStatus.of(p);
+				if (last != null && status.sameAttributes(last)) {
+					status = status.withHash(last.hashed, last.hash);
+				} else {
+					toHash.add(p);
+				}
+				statuses.put(p, status);
+			}
+		}
+		hash(toHash, statuses);
+
 		for (Map.Entry<String, ReplacementGeneratorWrapper> e : allReplacements.asMap().entrySet()) {
 			String key = e.getKey();
 			ReplacementGeneratorWrapper replacement = e.getValue();
 			for (Path p : replacement.getPaths()) {
-				currentStatus.put(key, new FileStatus(p));
+				currentStatus.put(key, statuses.get(p));
 			}
 		}
 		Set<String> combinedKeys = new HashSet<>();
 		combinedKeys.addAll(currentStatus.keySet());
 		combinedKeys.addAll(lastStatus.keySet());
 		for (String key : combinedKeys) {
-			List<FileStatus> current = currentStatus.get(key);
-			List<FileStatus> old = lastStatus.get(key);
+			List<SourceStatus> current = currentStatus.get(key);
+			List<SourceStatus> old = lastStatus.get(key);
 
 			if (current.size() == 0) {
 				assert old.size() != 0;
+				if (patched.contains(key)) {
+					continue;
+				}
 				// TODO: Add action to replace from backup
 				changedReplacements.getUnchecked(key).addGenerator(Backups.INSTANCE.getReplacementGenerator(key), true, null);
-			} else if (!old.equals(current)) {
+			} else if (!sameContents(old, current) || patched.contains(key)) {
 				changedReplacements.put(key, allReplacements.getIfPresent(key));
 			}
 		}
 	}
 
+	private static boolean sameContents(List<SourceStatus> old, List<SourceStatus> current) {
+		if (old.size() != current.size()) {
+			return false;
+		}
+		for (int i = 0; i < old.size(); i++) {
+			if (!current.get(i).sameContents(old.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Hashes the contents of new or changed files on a bounded pool
+	 */
+	private static void hash(List<Path> paths, Map<Path, SourceStatus> statuses) {
+		if (paths.isEmpty()) {
+			return;
+		}
+		int threads = Math.min(paths.size(), Integer.getInteger("leagueskin.fileStatus.threads", Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Long>> futures = new ArrayList<>();
+			for (Path p : paths) {
+				futures.add(executor.submit(() -> com.google.common.io.Files.asByteSource(p.toFile()).hash(contentHash).asLong()));
+			}
+			for (int i = 0; i < paths.size(); i++) {
+				Path p = paths.get(i);
+				try {
+					statuses.put(p, statuses.get(p).withHash(true, futures.get(i).get()));
+				} catch (ExecutionException e) {
+					throw Throw.sneaky(e.getCause());
+				} catch (InterruptedException e) {
+					throw Throw.sneaky(e);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
 	@Override
 	public String toString() {
 		return "FileStatusManager{" +
@@ -75,7 +331,107 @@ public class FileStatusManager {
 			'}';
 	}
 
+	private static class SourceStatus {
+		// Null if migrated from fileStatus.config
+		final String path;
+		final long size;
+		final long modified;
+		// -1 if unknown
+		final long created;
+		// Hash of the platform's file key, eg inode, 0 if it has none or unknown
+		final int fileKey;
+		final boolean hashed;
+		final long hash;
+
+		SourceStatus(String path, long size, long modified, long created, int fileKey, boolean hashed, long hash) {
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+			this.created = created;
+			this.fileKey = fileKey;
+			this.hashed = hashed;
+			this.hash = hash;
+		}
+
+		static SourceStatus of(Path path) {
+			if (!Files.exists(path)) {
+				throw new RuntimeException("Shouldn't retrieve status for file which is not present");
+			}
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+				Object fileKey = attributes.fileKey();
+				return new SourceStatus(path.toString(), attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.creationTime().toMillis(), fileKey == null ? 0 : fileKey.hashCode(), false, 0);
+			} catch (IOException e) {
+				throw Throw.sneaky(e);
+			}
+		}
+
+		static SourceStatus read(DataInputStream in) throws IOException {
+			String path = in.readUTF();
+			return new SourceStatus(path.isEmpty() ? null : path, in.readLong(), in.readLong(), in.readLong(), in.readInt(), in.readBoolean(), in.readLong());
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeUTF(path == null ? "" : path);
+			out.writeLong(size);
+			out.writeLong(modified);
+			out.writeLong(created);
+			out.writeInt(fileKey);
+			out.writeBoolean(hashed);
+			out.writeLong(hash);
+		}
+
+		SourceStatus withHash(boolean hashed, long hash) {
+			return new SourceStatus(path, size, modified, created, fileKey, hashed, hash);
+		}
+
+		/**
+		 * @return whether size, times and file key match, so the contents are assumed to
+		 */
+		boolean sameAttributes(SourceStatus old) {
+			return size == old.size && modified == old.modified && (created == old.created || old.created == -1) && (fileKey == old.fileKey || old.fileKey == 0);
+		}
+
+		boolean sameContents(SourceStatus old) {
+			if (old.path != null && !old.path.equals(path)) {
+				return false;
+			}
+			if (sameAttributes(old)) {
+				return true;
+			}
+			return size == old.size && hashed && old.hashed && hash == old.hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof SourceStatus)) return false;
+
+			SourceStatus that = (SourceStatus) o;
+
+			return size == that.size && modified == that.modified && created == that.created && fileKey == that.fileKey && hashed == that.hashed && hash == that.hash && Objects.equals(path, that.path);
+		}
+
+		@Override
+		public int hashCode() {
+			int result = Objects.hashCode(path);
+			result = 31 * result + (int) (size ^ (size >>> 32));
+			result = 31 * result + (int) (modified ^ (modified >>> 32));
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return path + "(" + size + ", " + modified + ")";
+		}
+	}
+
+	/**
+	 * Status stored in fileStatus.config by older versions, only used to migrate it
+	 */
 	private static class FileStatus implements Serializable {
+		// As computed for the class which wrote it
+		private static final long serialVersionUID = -7222025483322573649L;
 		long size = 0;
 		long date = 0;
 
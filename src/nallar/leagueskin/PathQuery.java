@@ -0,0 +1,204 @@
+package nallar.leagueskin;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.regex.*;
+
+/**
+ * Matches many path patterns against a set of full paths in one walk of a directory tree.
+ * Patterns are case insensitive regexes, found anywhere in the path, or globs matching the whole path when prefixed
+ * with glob:. In globs * matches within a directory and ** across directories.
+ * <p>
+ * Directories are only walked if a pattern could match something in them, and files are only tested against patterns
+ * which could match their extension.
+ */
+public class PathQuery {
+	private static final String REGEX_SPECIAL = ".[]{}()\\*+?^$|";
+	private final List<CompiledPattern> patterns = new ArrayList<>();
+
+	public PathQuery(Collection<String> patterns) {
+		for (String pattern : patterns) {
+			this.patterns.add(pattern.startsWith("glob:") ? glob(pattern.substring(5)) : regex(pattern));
+		}
+	}
+
+	/**
+	 * Reads one pattern per line, ignoring blank lines and lines starting with #
+	 */
+	public static PathQuery fromFile(Path location) {
+		List<String> patterns = new ArrayList<>();
+		try {
+			for (String line : Files.readAllLines(location, StandardCharsets.UTF_8)) {
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#")) {
+					patterns.add(line);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to read patterns from " + location, e);
+		}
+		return new PathQuery(patterns);
+	}
+
+	/**
+	 * Passes each path matched by any pattern to the consumer once, in sorted order
+	 */
+	public void run(Index index, Consumer<String> results) {
+		run(index.root, patterns, results);
+	}
+
+	private static void run(Node directory, List<CompiledPattern> candidates, Consumer<String> results) {
+		List<CompiledPattern> active = new ArrayList<>();
+		for (CompiledPattern pattern : candidates) {
+			if (pattern.couldMatchIn(directory.lowerCasePath)) {
+				active.add(pattern);
+			}
+		}
+		if (active.isEmpty()) {
+			return;
+		}
+		// Files and subdirectories are merged by path, so results come out in the same order as sorted full paths
+		Iterator<Node> children = directory.children.values().iterator();
+		Node child = children.hasNext() ? children.next() : null;
+		for (String file : directory.files) {
+			while (child != null && child.path.compareTo(file) < 0) {
+				run(child, active, results);
+				child = children.hasNext() ? children.next() : null;
+			}
+			for (CompiledPattern pattern : active) {
+				if (pattern.matches(file)) {
+					results.accept(file);
+					break;
+				}
+			}
+		}
+		while (child != null) {
+			run(child, active, results);
+			child = children.hasNext() ? children.next() : null;
+		}
+	}
+
+	private static CompiledPattern glob(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int literalEnd = -1;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*' || c == '?') {
+				if (literalEnd == -1) {
+					literalEnd = i;
+				}
+				if (c == '?') {
+					regex.append("[^/]");
+				} else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+					regex.append(".*");
+					i++;
+				} else {
+					regex.append("[^/]*");
+				}
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		String prefix = literalEnd == -1 ? glob : glob.substring(0, literalEnd);
+		String name = glob.substring(glob.lastIndexOf('/') + 1);
+		int dot = name.lastIndexOf('.');
+		String extension = dot == -1 || name.indexOf('*', dot) != -1 || name.indexOf('?', dot) != -1 ? null : name.substring(dot);
+		return new CompiledPattern(Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE), true, prefix, extension);
+	}
+
+	private static CompiledPattern regex(String regex) {
+		String prefix = "";
+		String extension = null;
+		if (regex.indexOf('|') != -1) {
+			// Alternatives may not share a prefix or extension
+			return new CompiledPattern(Pattern.compile(regex, Pattern.CASE_INSENSITIVE), false, prefix, extension);
+		}
+		if (regex.startsWith("^")) {
+			int end = 1;
+			while (end < regex.length() && REGEX_SPECIAL.indexOf(regex.charAt(end)) == -1) {
+				end++;
+			}
+			// A quantifier after the literal part applies to its last character
+			if (end < regex.length() && "*+?{".indexOf(regex.charAt(end)) != -1) {
+				end--;
+			}
+			prefix = regex.substring(1, Math.max(end, 1));
+		}
+		Matcher literalExtension = Pattern.compile("\\\\(\\.\\w+)\\$$").matcher(regex);
+		if (literalExtension.find()) {
+			extension = literalExtension.group(1);
+		}
+		return new CompiledPattern(Pattern.compile(regex, Pattern.CASE_INSENSITIVE), false, prefix, extension);
+	}
+
+	private static class CompiledPattern {
+		final Pattern pattern;
+		final boolean wholePath;
+		// Every match starts with this, lowercase
+		final String prefix;
+		// Every match ends with this, or null if unknown
+		final String extension;
+
+		CompiledPattern(Pattern pattern, boolean wholePath, String prefix, String extension) {
+			this.pattern = pattern;
+			this.wholePath = wholePath;
+			this.prefix = prefix.toLowerCase();
+			this.extension = extension;
+		}
+
+		boolean couldMatchIn(String lowerCaseDirectory) {
+			return lowerCaseDirectory.startsWith(prefix) || prefix.startsWith(lowerCaseDirectory);
+		}
+
+		boolean matches(String path) {
+			if (extension != null && !path.regionMatches(true, path.length() - extension.length(), extension, 0, extension.length())) {
+				return false;
+			}
+			Matcher matcher = pattern.matcher(path);
+			return wholePath ? matcher.matches() : matcher.find();
+		}
+	}
+
+	/**
+	 * Directory tree of full paths, eg from the release manifest and file sources
+	 */
+	public static class Index {
+		private final Node root = new Node("");
+
+		public Index(Collection<String> paths) {
+			for (String path : new HashSet<>(paths)) {
+				Node directory = root;
+				int start = 0;
+				int end;
+				while ((end = path.indexOf('/', start)) != -1) {
+					String directoryPath = path.substring(0, end + 1);
+					directory = directory.children.computeIfAbsent(directoryPath, Node::new);
+					start = end + 1;
+				}
+				directory.files.add(path);
+			}
+			sort(root);
+		}
+
+		private static void sort(Node directory) {
+			Collections.sort(directory.files);
+			directory.children.values().forEach(Index::sort);
+		}
+	}
+
+	private static class Node {
+		// Full path including the trailing /
+		final String path;
+		final String lowerCasePath;
+		final List<String> files = new ArrayList<>();
+		final Map<String, Node> children = new TreeMap<>();
+
+		Node(String path) {
+			this.path = path;
+			lowerCasePath = path.toLowerCase();
+		}
+	}
+}
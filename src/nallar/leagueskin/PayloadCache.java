@@ -0,0 +1,221 @@
+package nallar.leagueskin;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import nallar.leagueskin.riotfiles.RafCodec;
+import nallar.leagueskin.util.PathUtil;
+import nallar.leagueskin.util.Throw;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Content addressed cache of replacement payloads: skin source files, generated replacements and their compressed
+ * forms. The same replacement often targets entries in several archives, this way it is read, generated and
+ * compressed once.
+ * <p>
+ * Entries are held in memory up to leagueskin.payloadCache.memoryMB, and generated and compressed payloads are also
+ * kept under the data directory up to leagueskin.payloadCache.diskMB so they carry over to later installs until their
+ * sources change. Setting diskMB to 0 disables the disk tier.
+ * <p>
+ * Returned arrays are shared and must not be modified. Threadsafe.
+ */
+public class PayloadCache {
+	public static final PayloadCache INSTANCE = new PayloadCache();
+	private static final long MEMORY_BYTES = Long.getLong("leagueskin.payloadCache.memoryMB", 256) << 20;
+	private static final long DISK_BYTES = Long.getLong("leagueskin.payloadCache.diskMB", 1024) << 20;
+	private static final int MAGIC = 0x4C535043; // LSPC
+	// Changes whenever generated output for the same sources would, eg model transfer changes
+	private static final int GENERATOR_VERSION = 1;
+	private static final HashFunction hash = Hashing.murmur3_128();
+	private final Path location = PathUtil.dataDir().resolve("cache").resolve("payloads");
+	private final Cache<HashCode, byte[]> memory = CacheBuilder.newBuilder()
+		.maximumWeight(MEMORY_BYTES)
+		.weigher((HashCode key, byte[] value) -> value.length)
+		.build();
+	// Content hash of each source file as last read, by absolute path
+	private final Map<Path, SourceState> sources = new ConcurrentHashMap<>();
+
+	/**
+	 * @return contents of a skin source file, read again only if its size or modification time changed
+	 */
+	public byte[] source(Path file) throws IOException {
+		Path key = file.toAbsolutePath();
+		long size = Files.size(key);
+		long modified = Files.getLastModifiedTime(key).toMillis();
+		SourceState state = sources.get(key);
+		if (state != null && state.size == size && state.modified == modified) {
+			byte[] cached = memory.getIfPresent(state.hash);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		byte[] data = Files.readAllBytes(key);
+		HashCode contentHash = hash.hashBytes(data);
+		sources.put(key, new SourceState(data.length, modified, contentHash));
+		memory.put(contentHash, data);
+		return data;
+	}
+
+	/**
+	 * Applies a replacement, reusing a previous result for the same sources and previous contents.
+	 * Replacements with a generator not backed by a source file, eg restoring a backup, are always applied.
+	 */
+	public byte[] generated(ReplacementGeneratorWrapper replacement, byte[] previous) throws IOException {
+		Hasher key = hash.newHasher().putString("generated", StandardCharsets.UTF_8).putInt(GENERATOR_VERSION);
+		if (!replacement.discardsPrevious) {
+			key.putBytes(hash.hashBytes(previous).asBytes());
+		}
+		for (Path path : replacement.getPaths()) {
+			if (path == null) {
+				return replacement.apply(previous);
+			}
+			// Name decides how the source is used, eg .obj model transfer
+			key.putString(path.getFileName().toString(), StandardCharsets.UTF_8);
+			source(path);
+			key.putBytes(sources.get(path.toAbsolutePath()).hash.asBytes());
+		}
+		return get(key.hash(), () -> replacement.apply(previous));
+	}
+
+	/**
+	 * @return data compressed as a .raf.dat entry
+	 */
+	public byte[] deflated(byte[] data) {
+		HashCode key = hash.newHasher().putString("deflated", StandardCharsets.UTF_8).putBytes(data).hash();
+		try {
+			return get(key, () -> RafCodec.compress(data));
+		} catch (IOException e) {
+			throw Throw.sneaky(e);
+		}
+	}
+
+	/**
+	 * Trims the disk tier to its maximum size, removing the least recently used payloads first. Call at the end of an
+	 * install.
+	 */
+	public void finish() {
+		if (DISK_BYTES <= 0 || !Files.isDirectory(location)) {
+			return;
+		}
+		List<Path> files = new ArrayList<>();
+		Map<Path, Long> used = new HashMap<>();
+		long total = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(location, "*.bin")) {
+			for (Path file : stream) {
+				files.add(file);
+				used.put(file, Files.getLastModifiedTime(file).toMillis());
+				total += Files.size(file);
+			}
+			files.sort(Comparator.comparing(used::get));
+			for (Path file : files) {
+				if (total <= DISK_BYTES) {
+					break;
+				}
+				total -= Files.size(file);
+				Files.delete(file);
+			}
+		} catch (IOException e) {
+			Log.warn("Failed to trim payload cache " + location, e);
+		}
+	}
+
+	private byte[] get(HashCode key, Callable<byte[]> generator) throws IOException {
+		try {
+			// Concurrent requests for the same payload wait for the first rather than repeating its work
+			return memory.get(key, () -> {
+				byte[] stored = load(key);
+				if (stored != null) {
+					return stored;
+				}
+				byte[] generated = generator.call();
+				store(key, generated);
+				return generated;
+			});
+		} catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+			throw Throw.sneaky(e.getCause());
+		}
+	}
+
+	private byte[] load(HashCode key) {
+		if (DISK_BYTES <= 0) {
+			return null;
+		}
+		Path file = diskLocation(key);
+		if (!Files.exists(file)) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a payload cache entry");
+			}
+			long expected = in.readLong();
+			byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+			CRC32 crc32 = new CRC32();
+			crc32.update(data, 0, data.length);
+			if (crc32.getValue() != expected) {
+				throw new IOException("Checksum mismatch");
+			}
+			// Marks it as recently used for trimming
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			return data;
+		} catch (IOException e) {
+			Log.warn("Discarding unreadable payload cache entry " + file, e);
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException ignored) {
+			}
+			return null;
+		}
+	}
+
+	private void store(HashCode key, byte[] data) {
+		if (DISK_BYTES <= 0) {
+			return;
+		}
+		Path file = diskLocation(key);
+		Path temporary = Paths.get(file.toString() + '.' + Thread.currentThread().getId() + ".tmp");
+		try {
+			Files.createDirectories(location);
+			CRC32 crc32 = new CRC32();
+			crc32.update(data, 0, data.length);
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+				out.writeInt(MAGIC);
+				out.writeLong(crc32.getValue());
+				out.writeInt(data.length);
+				out.write(data);
+			}
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Log.warn("Failed to write payload cache entry " + file, e);
+		}
+	}
+
+	private Path diskLocation(HashCode key) {
+		return location.resolve(key.toString() + ".bin");
+	}
+
+	private static class SourceState {
+		final long size;
+		final long modified;
+		final HashCode hash;
+
+		SourceState(long size, long modified, HashCode hash) {
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+		}
+	}
+}
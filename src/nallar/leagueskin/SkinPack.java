@@ -12,6 +12,7 @@ import java.util.*;
 
 public class SkinPack {
 	final String match;
+	private final Path folder;
 
 	private List<Replacement> replacements = new ArrayList<>();
 
@@ -21,9 +22,10 @@ public class SkinPack {
 
 	public SkinPack(Path folder, String match) {
 		this.match = match;
+		this.folder = folder.toAbsolutePath();
 		preSearch(folder);
 		//if (true) { throw null; }
-		recursiveSearch(folder);
+		recursiveSearch(folder, replacements);
 	}
 
 	private static String shortNameFromPath(Path p) {
@@ -81,7 +83,7 @@ public class SkinPack {
 		}
 	}
 
-	private void recursiveSearch(Path path) {
+	private void recursiveSearch(Path path, List<Replacement> found) {
 		Path workingDir = Paths.get("").toAbsolutePath();
 		path = path.toAbsolutePath();
 		try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
@@ -92,40 +94,84 @@ public class SkinPack {
 					continue;
 				}
 				if (Files.isDirectory(entry)) {
-					recursiveSearch(entry);
+					recursiveSearch(entry, found);
 					continue;
 				}
-				if (match == null || name.contains(match)) {
-					boolean discardsPrevious = true;
-					ReplacementGenerator replacementGenerator = previous -> Files.readAllBytes(entry);
-					if (name.endsWith(".obj")) {
-						discardsPrevious = false;
-						name = name.replace(".obj", ".skn");
-						Obj replacement = new Obj();
-						try {
-							replacement.load(entry);
-						} catch (Throwable t) {
-							throw new RuntimeException("Failed to load " + entry, t);
-						}
-						final String finalName = name;
-						replacementGenerator = previous -> {
-							Skn skn = new Skn(finalName, ByteBuffer.wrap(previous));
-							try {
-								return ModelTransfer.transfer(skn, replacement);
-							} catch (Exception e) {
-								Log.error("Error replacing " + entry, e);
-								return previous;
-							}
-						};
-					}
-					replacements.add(new Replacement(name, replacementGenerator, discardsPrevious, entry));
-				}
+				addFile(entry, name, found);
 			}
 		} catch (IOException e) {
 			throw Throw.sneaky(e);
 		}
 	}
 
+	private void addFile(Path entry, String name, List<Replacement> found) {
+		if (match == null || name.contains(match)) {
+			boolean discardsPrevious = true;
+			ReplacementGenerator replacementGenerator = previous -> PayloadCache.INSTANCE.source(entry);
+			if (name.endsWith(".obj")) {
+				discardsPrevious = false;
+				name = name.replace(".obj", ".skn");
+				Obj replacement = new Obj();
+				try {
+					replacement.load(entry);
+				} catch (Throwable t) {
+					throw new RuntimeException("Failed to load " + entry, t);
+				}
+				final String finalName = name;
+				replacementGenerator = previous -> {
+					Skn skn = new Skn(finalName, ByteBuffer.wrap(previous));
+					try {
+						// Transferring modifies the replacement model, and one model can target several files
+						synchronized (replacement) {
+							return ModelTransfer.transfer(skn, replacement);
+						}
+					} catch (Exception e) {
+						Log.error("Error replacing " + entry, e);
+						return previous;
+					}
+				};
+			}
+			found.add(new Replacement(name, replacementGenerator, discardsPrevious, entry));
+		}
+	}
+
+	/**
+	 * Scans the given files or directories again after they changed, replacing the replacements found in them.
+	 * Paths which no longer exist have their replacements removed.
+	 * If scanning any path fails, eg a model which is only partly saved, the pack is left unchanged.
+	 */
+	public void update(Collection<Path> changed) {
+		Path workingDir = Paths.get("").toAbsolutePath();
+		preSearch(folder);
+		List<Replacement> updated = new ArrayList<>(replacements);
+		for (Path changedFull : changed) {
+			Path entry = workingDir.relativize(changedFull.toAbsolutePath());
+			updated.removeIf(replacement -> replacement.path.startsWith(entry));
+			if (isSkipped(entry) || !Files.exists(entry)) {
+				continue;
+			}
+			if (Files.isDirectory(entry)) {
+				recursiveSearch(entry, updated);
+			} else {
+				addFile(entry, shortNameFromPath(entry), updated);
+			}
+		}
+		replacements = updated;
+	}
+
+	/**
+	 * @return whether the entry is in or is a file or directory starting with !, which are not searched
+	 */
+	private boolean isSkipped(Path entry) {
+		Path relative = folder.relativize(entry.toAbsolutePath());
+		for (Path part : relative) {
+			if (part.toString().startsWith("!")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public List<Replacement> getReplacements() {
 		return replacements;
 	}
@@ -0,0 +1,135 @@
+package nallar.leagueskin;
+
+import nallar.leagueskin.util.Throw;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches a skins folder and installs its changes as they are made, keeping the parsed archives of a FileManager
+ * between installs. Only changed files are scanned again, and only replacements whose files changed are installed.
+ * <p>
+ * Bursts of events, eg an editor saving a file in several steps, are gathered until the folder has been quiet for
+ * leagueskin.watch.debounceMs.
+ */
+public class SkinWatcher {
+	private static final long DEBOUNCE_MS = Long.getLong("leagueskin.watch.debounceMs", 250);
+	private final FileManager fileManager;
+	private final SkinPack skinPack;
+	private final Path folder;
+	private final WatchService watchService;
+	private final Map<WatchKey, Path> directories = new HashMap<>();
+	// Changes from a batch which failed to scan, tried again with the next
+	private final Set<Path> retry = new LinkedHashSet<>();
+
+	public SkinWatcher(FileManager fileManager, SkinPack skinPack, Path folder) {
+		this.fileManager = fileManager;
+		this.skinPack = skinPack;
+		this.folder = folder.toAbsolutePath();
+		try {
+			watchService = this.folder.getFileSystem().newWatchService();
+		} catch (IOException e) {
+			throw Throw.sneaky(e);
+		}
+		register(this.folder);
+	}
+
+	/**
+	 * Watches until interrupted. Failed scans and installs are logged, and retried with the next change.
+	 */
+	public void run() {
+		Log.info("Watching " + folder + " for changes");
+		try {
+			while (true) {
+				Set<Path> changed = new LinkedHashSet<>(retry);
+				retry.clear();
+				boolean overflowed = poll(watchService.take(), changed);
+				WatchKey key;
+				while ((key = watchService.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS)) != null) {
+					overflowed |= poll(key, changed);
+				}
+				if (overflowed) {
+					// Events were lost, so everything is scanned again
+					changed.clear();
+					changed.add(folder);
+				}
+				if (changed.isEmpty()) {
+					continue;
+				}
+				long start = System.nanoTime();
+				try {
+					skinPack.update(changed);
+				} catch (Throwable t) {
+					Log.error("Failed to scan changes to " + changed + ", waiting for the next change", t);
+					retry.addAll(changed);
+					continue;
+				}
+				try {
+					fileManager.installSkinPack(skinPack);
+					Log.info("Applied " + changed.size() + " changes in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+				} catch (Throwable t) {
+					Log.error("Failed to install changes to " + changed, t);
+				}
+			}
+		} catch (InterruptedException e) {
+			Log.info("Stopped watching " + folder);
+		} finally {
+			try {
+				watchService.close();
+			} catch (IOException e) {
+				Log.warn("Failed to close watch service", e);
+			}
+		}
+	}
+
+	/**
+	 * Collects the changed paths from a signalled key
+	 *
+	 * @return whether events were lost
+	 */
+	private boolean poll(WatchKey key, Set<Path> changed) {
+		Path directory = directories.get(key);
+		boolean overflowed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				overflowed = true;
+				continue;
+			}
+			if (directory == null) {
+				continue;
+			}
+			Path path = directory.resolve((Path) event.context());
+			changed.add(path);
+			if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+				register(path);
+			}
+		}
+		if (!key.reset()) {
+			// Directory was deleted
+			directories.remove(key);
+		}
+		return overflowed;
+	}
+
+	/**
+	 * Watches a directory and every directory in it
+	 */
+	private void register(Path start) {
+		try {
+			Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+					directories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			throw Throw.sneaky(e);
+		}
+	}
+}
@@ -7,15 +7,50 @@ import nallar.leagueskin.util.PathUtil;
 import nallar.leagueskin.util.Throw;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.nio.file.*;
 import java.util.*;
 
 public class AirFileSource implements FileSource {
+	private final Path airDirectory;
 	private Map<String, AirFileEntry> fileEntryMap = new HashMap<>();
 
 	public AirFileSource(Path airDirectory) {
+		this.airDirectory = airDirectory;
+		// New AIR releases are deployed to a new directory, so only the top level directories are checked for changes
+		long cacheKey = modifiedTime(airDirectory.resolve("assets")) * 31 + modifiedTime(airDirectory.resolve("mod"));
+		ByteBuffer cached = IndexCache.load("air", airDirectory, cacheKey);
+		if (cached != null) {
+			int count = cached.getInt();
+			for (int i = 0; i < count; i++) {
+				String rafPath = IndexCache.getString(cached);
+				fileEntryMap.put(rafPath, new AirFileEntry(airDirectory.resolve(IndexCache.getString(cached)), rafPath));
+			}
+			return;
+		}
 		recursiveSearch(airDirectory.resolve("assets"), airDirectory);
 		recursiveSearch(airDirectory.resolve("mod"), airDirectory);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(fileEntryMap.size());
+			for (AirFileEntry entry : fileEntryMap.values()) {
+				IndexCache.putString(out, entry.path);
+				IndexCache.putString(out, airDirectory.relativize(entry.entry).toString());
+			}
+			IndexCache.store("air", airDirectory, cacheKey, bytes.toByteArray());
+		} catch (IOException e) {
+			throw Throw.sneaky(e);
+		}
+	}
+
+	private static long modifiedTime(Path path) {
+		try {
+			return Files.getLastModifiedTime(path).toMillis();
+		} catch (IOException e) {
+			throw Throw.sneaky(e);
+		}
 	}
 
 	private void recursiveSearch(Path airDirectory, Path parent) {
@@ -26,7 +61,7 @@ public class AirFileSource implements FileSource {
 					continue;
 				}
 				String rafPath = "AIR/" + PathUtil.canonical(parent.relativize(entry).toString());
-				AirFileEntry f = new AirFileEntry(entry, rafPath, Files.size(entry));
+				AirFileEntry f = new AirFileEntry(entry, rafPath);
 				fileEntryMap.put(rafPath, f);
 			}
 		} catch (IOException e) {
@@ -34,6 +69,11 @@ public class AirFileSource implements FileSource {
 		}
 	}
 
+	@Override
+	public String toString() {
+		return "AIR files in " + airDirectory;
+	}
+
 	@Override
 	public Collection<? extends FileEntry> getEntries() {
 		return fileEntryMap.values();
@@ -64,17 +104,15 @@ public class AirFileSource implements FileSource {
 	private static class AirFileEntry implements FileEntry {
 		private final String path;
 		private final Path entry;
-		private final int size;
 
-		public AirFileEntry(Path entry, String rafPath, long size) {
+		public AirFileEntry(Path entry, String rafPath) {
 			path = rafPath;
 			this.entry = entry;
-			this.size = (int) size;
 		}
 
 		@Override
 		public String toString() {
-			return path + " of size " + size;
+			return path + " of size " + getSizeOnDisk();
 		}
 
 		@Override
@@ -96,9 +134,37 @@ public class AirFileSource implements FileSource {
 			return getRawBytes();
 		}
 
+		@Override
+		public ReadableByteChannel openRawChannel() {
+			try {
+				return Files.newByteChannel(entry);
+			} catch (IOException e) {
+				throw Throw.sneaky(e);
+			}
+		}
+
+		@Override
+		public InputStream openDecompressedStream() {
+			try {
+				return Files.newInputStream(entry);
+			} catch (IOException e) {
+				throw Throw.sneaky(e);
+			}
+		}
+
 		@Override
 		public int getSizeOnDisk() {
-			return size;
+			// Not kept, updates change it
+			try {
+				return (int) Files.size(entry);
+			} catch (IOException e) {
+				throw Throw.sneaky(e);
+			}
+		}
+
+		@Override
+		public int getDecompressedSize() {
+			return getSizeOnDisk();
 		}
 	}
 }
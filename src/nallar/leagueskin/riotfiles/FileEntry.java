@@ -1,5 +1,8 @@
 package nallar.leagueskin.riotfiles;
 
+import java.io.*;
+import java.nio.channels.*;
+
 public interface FileEntry {
 	default String getFileName() {
 		return getPath().substring(getPath().lastIndexOf('/') + 1);
@@ -11,5 +14,20 @@ public interface FileEntry {
 
 	byte[] getDecompressedBytes();
 
+	/**
+	 * Raw contents as a channel, for entries too large to hold on heap. Caller must close.
+	 */
+	ReadableByteChannel openRawChannel();
+
+	/**
+	 * Decompressed contents as a stream, for entries too large to hold on heap. Caller must close.
+	 */
+	InputStream openDecompressedStream();
+
 	int getSizeOnDisk();
+
+	/**
+	 * Size of the decompressed contents. May need to decompress, but does not keep the contents.
+	 */
+	int getDecompressedSize();
 }
@@ -7,5 +7,8 @@ import java.util.*;
 public interface FileSource {
 	Collection<? extends FileEntry> getEntries();
 
+	/**
+	 * @param replacements by full path, each of which must be in this source
+	 */
 	void update(Map<String, ReplacementGeneratorWrapper> replacements);
 }
@@ -0,0 +1,133 @@
+package nallar.leagueskin.riotfiles;
+
+import nallar.leagueskin.Log;
+import nallar.leagueskin.util.PathUtil;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * On disk cache of indexes built when parsing sources, so unchanged sources are not parsed again on the next run.
+ * Entries are keyed by the source's path, size and modification time, and a key supplied by the caller which must
+ * change whenever the indexed parts of the source do, eg a checksum of its header.
+ * <p>
+ * Best effort - failing to read or write the cache is logged and the source is parsed as normal.
+ * Disable with leagueskin.indexCache=false
+ */
+class IndexCache {
+	private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("leagueskin.indexCache", "true"));
+	private static final int MAGIC = 0x4C534958; // LSIX
+	private static final int VERSION = 5;
+	private static final Path location = PathUtil.dataDir().resolve("cache").resolve("index");
+
+	/**
+	 * @return the cached payload for the source, memory mapped read only, or null if there is no entry for this key
+	 */
+	static ByteBuffer load(String kind, Path source, long key) {
+		if (!ENABLED) {
+			return null;
+		}
+		Path cacheLocation = cacheLocation(kind, source);
+		if (!Files.exists(cacheLocation)) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(cacheLocation, StandardOpenOption.READ)) {
+			byte[] expectedHeader = header(source, key);
+			// Header is read rather than mapped, so a stale entry is never mapped and can be replaced on Windows
+			ByteBuffer header = ByteBuffer.allocate(expectedHeader.length);
+			while (header.hasRemaining()) {
+				if (channel.read(header) == -1) {
+					return null;
+				}
+			}
+			if (!Arrays.equals(header.array(), expectedHeader)) {
+				return null;
+			}
+			return channel.map(FileChannel.MapMode.READ_ONLY, expectedHeader.length, channel.size() - expectedHeader.length);
+		} catch (IOException e) {
+			Log.warn("Failed to read index cache " + cacheLocation, e);
+			return null;
+		}
+	}
+
+	static void store(String kind, Path source, long key, byte[] payload) {
+		if (!ENABLED) {
+			return;
+		}
+		Path cacheLocation = cacheLocation(kind, source);
+		Path temporary = Paths.get(cacheLocation.toString() + ".tmp");
+		try {
+			Files.createDirectories(location);
+			try (OutputStream out = Files.newOutputStream(temporary)) {
+				out.write(header(source, key));
+				out.write(payload);
+			}
+			Files.move(temporary, cacheLocation, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Log.warn("Failed to write index cache " + cacheLocation, e);
+		}
+	}
+
+	/**
+	 * Adds part of a buffer to a checksum, without changing the buffer's position
+	 */
+	static void checksum(CRC32 crc32, ByteBuffer buffer, int offset, int length) {
+		ByteBuffer part = buffer.duplicate();
+		part.position(offset);
+		part.limit(offset + length);
+		byte[] chunk = new byte[Math.min(length, 64 * 1024)];
+		while (part.hasRemaining()) {
+			int n = Math.min(chunk.length, part.remaining());
+			part.get(chunk, 0, n);
+			crc32.update(chunk, 0, n);
+		}
+	}
+
+	static void putInts(DataOutputStream out, int[] values) throws IOException {
+		out.writeInt(values.length);
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	static int[] getInts(ByteBuffer in) {
+		int[] values = new int[in.getInt()];
+		in.asIntBuffer().get(values);
+		in.position(in.position() + values.length * 4);
+		return values;
+	}
+
+	static void putString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String getString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] header(Path source, long key) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		putString(out, source.toAbsolutePath().toString());
+		out.writeLong(Files.size(source));
+		out.writeLong(Files.getLastModifiedTime(source).toMillis());
+		out.writeLong(key);
+		return bytes.toByteArray();
+	}
+
+	private static Path cacheLocation(String kind, Path source) {
+		String sourceName = source.toAbsolutePath().toString();
+		return location.resolve(kind + '-' + Integer.toHexString(sourceName.hashCode()) + ".idx");
+	}
+}
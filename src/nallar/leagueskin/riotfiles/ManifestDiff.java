@@ -0,0 +1,48 @@
+package nallar.leagueskin.riotfiles;
+
+import java.util.*;
+
+/**
+ * Compares the release manifests of two game releases, to find which files a patch changed
+ */
+public class ManifestDiff {
+	private final ReleaseManifest previous;
+	private final ReleaseManifest current;
+
+	/**
+	 * Both manifests should be unmodified, see {@link ReleaseManifest#pristineLocation}, as installing replacements
+	 * changes the sizes listed.
+	 */
+	public ManifestDiff(ReleaseManifest previous, ReleaseManifest current) {
+		this.previous = previous;
+		this.current = current;
+	}
+
+	/**
+	 * Whether the given file was added, removed or changed between the releases. Files in neither manifest, eg
+	 * AIR files, are unchanged.
+	 *
+	 * @param fullName full path, eg /DATA/Characters/Corki/Corki.inibin
+	 */
+	public boolean changed(CharSequence fullName) {
+		int previousFile = previous.find(fullName);
+		int currentFile = current.find(fullName);
+		if (previousFile == -1 || currentFile == -1) {
+			return previousFile != currentFile;
+		}
+		return !previous.sameContents(previousFile, current, currentFile);
+	}
+
+	/**
+	 * @return which of the given files changed between the releases
+	 */
+	public Set<String> changed(Collection<String> fullNames) {
+		Set<String> changed = new HashSet<>();
+		for (String fullName : fullNames) {
+			if (changed(fullName)) {
+				changed.add(fullName);
+			}
+		}
+		return changed;
+	}
+}
@@ -1,20 +1,25 @@
 package nallar.leagueskin.riotfiles;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import nallar.leagueskin.Backups;
 import nallar.leagueskin.Log;
+import nallar.leagueskin.PayloadCache;
 import nallar.leagueskin.ReplacementGeneratorWrapper;
 import nallar.leagueskin.util.Throw;
 
 import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
+import java.nio.charset.*;
 import java.nio.file.*;
+import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.*;
 
 /**
  * Parses Riot Archive Format (.RAF) files
- * NOT THREADSAFE
+ * NOT THREADSAFE - replacements are generated in parallel within a single update, but a Raf must only be updated by one thread at a time
  */
 public class Raf implements FileSource {
 	static {
@@ -30,20 +35,52 @@ public class Raf implements FileSource {
 
 	private static void testRafHash() {
 		testRafHash("DATA/Characters/Corki/Corki.inibin", 118575870);
+		// Names are hashed both as strings and as UTF-8 in the string table, which must agree
+		String nonAscii = "DATA/Sounds/Caf\u00e9\ud83d\ude00.dds";
+		byte[] utf8 = nonAscii.getBytes(StandardCharsets.UTF_8);
+		testRafHash(nonAscii, rafHash(ByteBuffer.wrap(utf8), 0, utf8.length));
 	}
 
 	private static final boolean DEBUG_PARSE = Boolean.getBoolean("leagueskin.debug.parse");
 	private static final boolean DEBUG_DUMP = true; //Boolean.getBoolean("leagueskin.debug.dump");
-	private static final byte[] inflateBuffer = new byte[1024 * 1024];
-	private static final byte[] deflateBuffer = new byte[1024 * 1024];
+	private static final boolean ALWAYS_REWRITE = Boolean.getBoolean("leagueskin.raf.alwaysRewrite");
+	// Merge identical unchanged entries when rewriting
+	private static final boolean DEDUPE_REPACK = Boolean.getBoolean("leagueskin.raf.dedupeRepack");
+	// Fraction of the .raf.dat which may be unused before an update rewrites the whole file
+	private static final double COMPACT_THRESHOLD = Double.parseDouble(System.getProperty("leagueskin.raf.compactThreshold", "0.25"));
+	private static final ManifestFix MANIFEST_FIX = ManifestFix.valueOf(System.getProperty("leagueskin.manifest.fix", "BACKGROUND").toUpperCase());
+	private static final ExecutorService manifestFixPool = Executors.newFixedThreadPool(Integer.getInteger("leagueskin.manifest.fixThreads", Runtime.getRuntime().availableProcessors()), new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ManifestFix-%d").build());
+	// Decompresses, generates and recompresses replacements
+	private static final ForkJoinPool replacementPool = new ForkJoinPool(Integer.getInteger("leagueskin.raf.threads", Runtime.getRuntime().availableProcessors()));
+	// Replacements which may be read and generating at once in one update, bounding the old data held in memory
+	private static final int GENERATE_WINDOW = Integer.getInteger("leagueskin.raf.window", replacementPool.getParallelism() * 2);
 	private final Path location;
+	private final Path datLocation;
 	private final String name;
 	private final MappedByteBuffer buffer;
-	private List<RafEntry> rafEntryList = new ArrayList<>();
-	private Set<String> fileNames = new HashSet<>();
+	// TOC, stored column-wise. Row i of every array describes the same file.
+	private int count;
+	private int fileListOffset;
+	private int[] hashes;
+	private int[] datOffsets;
+	private int[] sizes;
+	// Absolute position and length in the mapped .raf of each row's name, without the leading / or trailing null
+	private int[] nameOffsets;
+	private int[] nameLengths;
+	// Decoded on first use
+	private String[] paths;
+	// Open addressing hash index, TOC row + 1 keyed by the row's RAF hash. 0 for empty slots.
+	// Rows with the same hash are told apart by comparing their name in the string table.
+	private int[] hashIndex;
+	// Shared by all reads of the .raf.dat, closed before the file is replaced
+	private FileChannel datChannel;
+	private volatile Future<?> manifestFix;
+	// Whether a LAZY correction has run, on the first update
+	private boolean manifestFixed;
 
 	public Raf(Path location) {
 		this.location = location;
+		this.datLocation = Paths.get(location.toString() + ".dat");
 		String name = location.toString().replace("\\", "/");
 		this.name = name.substring(name.lastIndexOf('/', name.lastIndexOf('/') - 1) + 1);
 		MappedByteBuffer b;
@@ -54,10 +91,15 @@ public class Raf implements FileSource {
 		}
 		b.order(ByteOrder.LITTLE_ENDIAN);
 		this.buffer = b;
+		RafJournal.recover(location, datLocation, b);
 		parse();
-		int fixed = fixManifest();
-		if (fixed != 0) {
-			Log.info("Corrected " + fixed + " manifest entries.");
+		switch (MANIFEST_FIX) {
+			case EAGER:
+				fixManifest();
+				break;
+			case BACKGROUND:
+				manifestFix = manifestFixPool.submit(this::fixManifest);
+				break;
 		}
 	}
 
@@ -71,206 +113,766 @@ public class Raf implements FileSource {
 
 	/**
 	 * Returns RAF Hash for given name - Do not use for anything else, terrible hash function. So many collisions!
+	 * Hashes the name's UTF-8 bytes with ASCII letters lowercased, the same as {@link #rafHash(ByteBuffer, int, int)}.
+	 * Does not allocate.
 	 *
-	 * @param name
+	 * @param name name, with or without leading slash. Expected format is DATA/Characters/Corki/Corki.inibin
 	 * @return
 	 */
-	private static int rafHash(String name) {
-		if (name.startsWith("/")) {
-			name = name.substring(1); // Strip first slash, expected format is DATA/Characters/Corki/Corki.inibin
-		}
-		name = name.toLowerCase();
-		int temp;
+	static int rafHash(CharSequence name) {
 		int hash = 0;
-		for (int i = 0; i < name.length(); i++) {
-			hash = (hash << 4) + name.charAt(i);
-			temp = hash & 0xF0000000;
-			if (temp != 0) {
-				hash = hash ^ (temp >>> 24);
-				hash = hash ^ temp;
+		for (int i = name.length() > 0 && name.charAt(0) == '/' ? 1 : 0; i < name.length(); ) {
+			int codePoint = Character.codePointAt(name, i);
+			i += Character.charCount(codePoint);
+			int length = utf8Length(codePoint);
+			for (int k = 0; k < length; k++) {
+				hash = rafHashStep(hash, lowerAscii(utf8Byte(codePoint, length, k)));
 			}
 		}
 		return hash;
 	}
 
-	private static byte[] decompress(byte[] input) {
-		Inflater inflater = new Inflater();
-		inflater.setInput(input);
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		while (!inflater.finished()) {
-			int n;
-			try {
-				n = inflater.inflate(inflateBuffer);
-				if (n == 0) {
-					Log.warn("Needs input: " + inflater.needsInput());
-					Log.warn("Needs dictionary: " + inflater.needsInput());
-					throw new RuntimeException("Failed to decompress, bad input");
+	/**
+	 * RAF hash of the UTF-8 name at the given position, as stored in the string table. Does not allocate.
+	 */
+	static int rafHash(ByteBuffer buffer, int offset, int length) {
+		int hash = 0;
+		for (int i = offset; i < offset + length; i++) {
+			hash = rafHashStep(hash, lowerAscii(buffer.get(i) & 0xff));
+		}
+		return hash;
+	}
+
+	private static int lowerAscii(int c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+
+	static int utf8Length(int codePoint) {
+		return codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+	}
+
+	/**
+	 * @return byte k of the length byte UTF-8 encoding of the code point
+	 */
+	static int utf8Byte(int codePoint, int length, int k) {
+		if (length == 1) {
+			return codePoint;
+		}
+		int bits = codePoint >> (6 * (length - 1 - k));
+		// Lead byte is 110xxxxx, 1110xxxx or 11110xxx
+		return k == 0 ? ((0xF00 >> length) & 0xFF) | bits : 0x80 | (bits & 0x3F);
+	}
+
+	private static int rafHashStep(int hash, int c) {
+		hash = (hash << 4) + c;
+		int temp = hash & 0xF0000000;
+		if (temp != 0) {
+			hash = hash ^ (temp >>> 24);
+			hash = hash ^ temp;
+		}
+		return hash;
+	}
+
+	/**
+	 * @param path full path, eg /DATA/Characters/Corki/Corki.inibin
+	 * @return TOC row for the given path, or -1 if this RAF does not contain it
+	 */
+	private int findRow(CharSequence path) {
+		int hash = rafHash(path);
+		int mask = hashIndex.length - 1;
+		for (int i = mix(hash) & mask; hashIndex[i] != 0; i = (i + 1) & mask) {
+			int row = hashIndex[i] - 1;
+			if (nameEquals(row, path)) {
+				return row;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Compares the path with a row's UTF-8 name in the string table, without decoding it
+	 */
+	private boolean nameEquals(int row, CharSequence path) {
+		int length = nameLengths[row];
+		int offset = nameOffsets[row];
+		int position = 0;
+		for (int i = path.length() > 0 && path.charAt(0) == '/' ? 1 : 0; i < path.length(); ) {
+			int codePoint = Character.codePointAt(path, i);
+			i += Character.charCount(codePoint);
+			int bytes = utf8Length(codePoint);
+			if (position + bytes > length) {
+				return false;
+			}
+			for (int k = 0; k < bytes; k++) {
+				if ((buffer.get(offset + position++) & 0xff) != utf8Byte(codePoint, bytes, k)) {
+					return false;
 				}
-			} catch (DataFormatException e) {
-				throw Throw.sneaky(e);
 			}
-			baos.write(inflateBuffer, 0, n);
 		}
-		return baos.toByteArray();
+		return position == length;
 	}
 
-	private static byte[] compress(byte[] input) {
-		Deflater deflater = new Deflater();
-		deflater.setInput(input);
-		deflater.finish();
-		byte[] compressed;
-		try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-			while (!deflater.finished()) {
-				int n = deflater.deflate(deflateBuffer);
-				baos.write(deflateBuffer, 0, n);
+	/**
+	 * Finds a row by comparing every name, for rows whose stored hash doesn't match their name so they are missing
+	 * from the hash index
+	 *
+	 * @return TOC row for the given path, or -1 if this RAF does not contain it
+	 */
+	private int findRowByName(CharSequence path) {
+		for (int row = 0; row < count; row++) {
+			if (nameEquals(row, path)) {
+				return row;
 			}
-			compressed = baos.toByteArray();
-		} catch (IOException e) {
-			throw Throw.sneaky(e);
 		}
-		deflater.end();
-		if (!Arrays.equals(decompress(compressed), input)) {
-			throw new RuntimeException("Mismatch!");
+		return -1;
+	}
+
+	private static int mix(int hash) {
+		// RAF hashes are poorly distributed in their low bits
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	public boolean contains(CharSequence path) {
+		return findRow(path) != -1;
+	}
+
+	/**
+	 * @return entry for the given full path, or null if this RAF does not contain it
+	 */
+	public FileEntry getEntry(CharSequence path) {
+		int row = findRow(path);
+		return row == -1 ? null : new RafEntry(row);
+	}
+
+	private String path(int row) {
+		String path = paths[row];
+		if (path == null) {
+			byte[] bytes = new byte[nameLengths[row]];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = buffer.get(nameOffsets[row] + i);
+			}
+			path = paths[row] = '/' + new String(bytes, StandardCharsets.UTF_8); // For consistency with ReleaseManifest names
 		}
-		return compressed;
+		return path;
 	}
 
 	@Override
 	public Collection<FileEntry> getEntries() {
-		return new ArrayList<>(rafEntryList);
+		List<FileEntry> entries = new ArrayList<>(count);
+		for (int row = 0; row < count; row++) {
+			entries.add(new RafEntry(row));
+		}
+		return entries;
+	}
+
+	/**
+	 * Corrects manifest sizes of entries which don't match this RAF, eg after a game patch
+	 */
+	private void fixManifest() {
+		int fixed = 0;
+		for (int row = 0; row < count; row++) {
+			if (ReleaseManifest.INSTANCE.setSize(new RafEntry(row))) {
+				fixed++;
+			}
+		}
+		if (fixed != 0) {
+			Log.info("Corrected " + fixed + " manifest entries for " + name);
+		}
+	}
+
+	/**
+	 * Finishes correcting the manifest before an update, so the correction can't overwrite sizes set by it
+	 */
+	private void finishManifestFix() {
+		if (MANIFEST_FIX == ManifestFix.LAZY && !manifestFixed) {
+			manifestFixed = true;
+			fixManifest();
+			return;
+		}
+		Future<?> manifestFix = this.manifestFix;
+		if (manifestFix == null) {
+			return;
+		}
+		try {
+			// Not started yet, run here rather than waiting behind other RAFs' corrections
+			if (manifestFix.cancel(false)) {
+				fixManifest();
+			} else {
+				manifestFix.get();
+			}
+		} catch (InterruptedException e) {
+			throw Throw.sneaky(e);
+		} catch (ExecutionException e) {
+			Log.error("Failed to correct manifest for " + name, e.getCause());
+		}
+		this.manifestFix = null;
+	}
+
+	private int tocOffset(int row) {
+		return fileListOffset + 4 + row * 16;
+	}
+
+	/**
+	 * Returns the TOC rows ordered by their offset in the .raf.dat, compared as unsigned.
+	 */
+	private int[] rowsByDatOffset() {
+		int[] rows = new int[count];
+		for (int row = 0; row < count; row++) {
+			rows[row] = row;
+		}
+		return sortByDatOffset(rows);
 	}
 
-	private int fixManifest() {
-		int[] size = {0};
-		rafEntryList.forEach((x) -> {
-			if (ReleaseManifest.INSTANCE.setSize(x)) {
-				size[0]++;
+	/**
+	 * Sorts the given TOC rows by their offset in the .raf.dat, compared as unsigned.
+	 *
+	 * @return the given array
+	 */
+	private int[] sortByDatOffset(int[] rows) {
+		long[] keys = new long[rows.length];
+		for (int i = 0; i < rows.length; i++) {
+			keys[i] = ((datOffsets[rows[i]] & 0xFFFFFFFFL) << 32) | rows[i];
+		}
+		Arrays.sort(keys);
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = (int) keys[i];
+		}
+		return rows;
+	}
+
+	/**
+	 * Bytes in the .raf.dat which are not referenced by any TOC row, left behind by earlier incremental updates.
+	 */
+	private long deadSpace(long datLength) {
+		long live = 0;
+		long coveredEnd = 0;
+		for (int row : rowsByDatOffset()) {
+			long start = datOffsets[row] & 0xFFFFFFFFL;
+			long end = start + (sizes[row] & 0xFFFFFFFFL);
+			if (end > coveredEnd) {
+				live += end - Math.max(start, coveredEnd);
+				coveredEnd = end;
 			}
-		});
-		return size[0];
+		}
+		return datLength - live;
 	}
 
 	@Override
 	public void update(Map<String, ReplacementGeneratorWrapper> replacements) {
-		if (Collections.disjoint(fileNames, replacements.keySet())) {
+		int[] rows = new int[replacements.size()];
+		String[] rowPaths = new String[count];
+		int replaced = 0;
+		for (String path : replacements.keySet()) {
+			int row = findRow(path);
+			if (row == -1) {
+				row = findRowByName(path);
+				if (row == -1) {
+					throw new IllegalArgumentException(path + " is not in " + name);
+				}
+				Log.warn("Stored RAF hash of " + path + " in " + name + " does not match its name, the game may not find it");
+			}
+			rows[replaced++] = row;
+			rowPaths[row] = path;
+		}
+		if (replaced == 0) {
 			return;
 		}
+		rows = sortByDatOffset(Arrays.copyOf(rows, replaced));
+		finishManifestFix();
 		//dump();
 		//debug("In common for " + this);
-		List<RafEntry> sortedRafList = new ArrayList<>(rafEntryList);
-		Collections.sort(sortedRafList, (s1, s2) -> Integer.compareUnsigned(s1.rafDatOffset, s2.rafDatOffset));
-
-		// Rename .raf.dat to .raf.dat.bak
-		// Open for reading, memory mapped.
-		Path rafDat = Paths.get(location.toString() + ".dat");
-		Path rafDatBak = Paths.get(location.toString() + ".dat.bak");
+		// Old data is read in .raf.dat order, replacements are generated in parallel then collected in the same order
+		// so the resulting layout does not depend on which finishes first. At most GENERATE_WINDOW are read ahead of
+		// the oldest unfinished replacement, and each task is dropped once collected, releasing its old data.
+		Map<Integer, GeneratedReplacement> replacementData = new LinkedHashMap<>();
+		// Checked against the .raf.dat after writing
+		Map<Integer, Long> expectedChecksums = new HashMap<>();
+		ArrayDeque<Integer> pendingRows = new ArrayDeque<>();
+		ArrayDeque<ForkJoinTask<GeneratedReplacement>> pending = new ArrayDeque<>();
+		long datLength;
 		try {
-			Files.move(rafDat, rafDatBak);
-		} catch (IOException e1) {
-			if (Files.exists(rafDatBak)) {
-				try {
-					Files.delete(rafDat);
-				} catch (IOException e2) {
-					throw Throw.sneaky(e2);
+			datLength = datChannel().size();
+			for (int row : rows) {
+				String path = rowPaths[row];
+				ReplacementGeneratorWrapper replacement = replacements.get(path);
+				if (pending.size() >= GENERATE_WINDOW) {
+					collect(pendingRows, pending, replacementData, expectedChecksums);
 				}
-			} else {
-				throw Throw.sneaky(e1);
-			}
-		}
-		try (
-			RandomAccessFile old = new RandomAccessFile(rafDatBak.toFile(), "r");
-			RandomAccessFile created = new RandomAccessFile(rafDat.toFile(), "rw")
-		) {
-			for (RafEntry entry : sortedRafList) {
-				int expectedSize = entry.size;
-				int offset = (int) created.getFilePointer();
-				int decompressedSize = 0;
-				ReplacementGeneratorWrapper replacement = replacements.get(entry.getPath());
-				if (old.getFilePointer() != entry.rafDatOffset) {
-					Log.warn("FP should already be at correct offset in old data. Should be " + entry.rafDatOffset + ", got " + old.getFilePointer());
-					old.seek(entry.rafDatOffset);
+				byte[] oldData = readRaw(row).array();
+				pendingRows.add(row);
+				pending.add(replacementPool.submit(() -> generateReplacement(path, oldData, replacement)));
+			}
+			while (!pending.isEmpty()) {
+				collect(pendingRows, pending, replacementData, expectedChecksums);
+			}
+		} catch (IOException e) {
+			pending.forEach(task -> task.cancel(false));
+			throw new RuntimeException("Failed to read RAF.dat file " + datLocation, e);
+		}
+
+		Map<Integer, Integer> owners = payloadOwners(replacementData);
+		long appended = 0;
+		for (Map.Entry<Integer, GeneratedReplacement> e : replacementData.entrySet()) {
+			if (owners.get(e.getKey()).equals(e.getKey())) {
+				appended += e.getValue().data.length;
+			}
+		}
+		if (owners.size() != replacementData.size() || new HashSet<>(owners.values()).size() != owners.size()) {
+			Log.trace("Writing " + new HashSet<>(owners.values()).size() + " payloads for " + owners.size() + " replacements in " + name);
+		}
+		long deadSpace = deadSpace(datLength);
+		if (ALWAYS_REWRITE || deadSpace > datLength * COMPACT_THRESHOLD) {
+			Log.info("Rewriting " + name + ", " + humanReadableByteCount(deadSpace, false) + " of " + humanReadableByteCount(datLength, false) + " is unused");
+			rewrite(replacementData, owners, datLength);
+			sanityCheck(rowsByDatOffset(), expectedChecksums);
+		} else if (datLength + appended > 0xFFFFFFFFL) {
+			Log.info("Rewriting " + name + ", appending replacements would exceed the maximum .raf.dat size");
+			rewrite(replacementData, owners, datLength);
+			sanityCheck(rowsByDatOffset(), expectedChecksums);
+		} else {
+			updateInPlace(replacementData, owners, datLength);
+			int[] changedRows = new int[replacementData.size()];
+			int i = 0;
+			for (int row : replacementData.keySet()) {
+				changedRows[i++] = row;
+			}
+			sanityCheck(changedRows, expectedChecksums);
+		}
+	}
+
+	/**
+	 * Waits for the oldest pending replacement and records it
+	 */
+	private void collect(Queue<Integer> pendingRows, Queue<ForkJoinTask<GeneratedReplacement>> pending, Map<Integer, GeneratedReplacement> replacementData, Map<Integer, Long> expectedChecksums) {
+		int row = pendingRows.remove();
+		GeneratedReplacement generated;
+		try {
+			generated = pending.remove().join();
+		} catch (RuntimeException e) {
+			pending.forEach(task -> task.cancel(false));
+			throw new RuntimeException("Failed to generate replacement for " + new RafEntry(row), e);
+		}
+		if (RafCodec.VERIFICATION != RafCodec.Verification.NONE) {
+			expectedChecksums.put(row, generated.checksum);
+		}
+		replacementData.put(row, generated);
+	}
+
+	/**
+	 * Maps each replaced row to the first row replaced with identical data, so each distinct payload is only written
+	 * once per archive, eg when a ^ wildcard replaces many entries with one file
+	 */
+	private static Map<Integer, Integer> payloadOwners(Map<Integer, GeneratedReplacement> replacementData) {
+		Map<Payload, Integer> firstRows = new HashMap<>();
+		Map<Integer, Integer> owners = new HashMap<>();
+		for (Map.Entry<Integer, GeneratedReplacement> e : replacementData.entrySet()) {
+			owners.put(e.getKey(), firstRows.computeIfAbsent(new Payload(e.getValue().data), k -> e.getKey()));
+		}
+		return owners;
+	}
+
+	/**
+	 * Finds rows whose slot in the .raf.dat may be overwritten by a replacement owned by the given row. A slot can be
+	 * overwritten if every row using it is being replaced by the same payload, and it does not partly overlap another.
+	 *
+	 * @return rows with reusable slots, by owner
+	 */
+	private Map<Integer, List<Integer>> reusableSlots(Map<Integer, Integer> owners) {
+		Map<Integer, List<Integer>> slots = new HashMap<>();
+		int[] sorted = rowsByDatOffset();
+		long coveredEnd = 0;
+		for (int i = 0; i < sorted.length; ) {
+			// Rows with the same offset and size share a slot
+			int first = sorted[i];
+			int end = i + 1;
+			while (end < sorted.length && datOffsets[sorted[end]] == datOffsets[first] && sizes[sorted[end]] == sizes[first]) {
+				end++;
+			}
+			long start = datOffsets[first] & 0xFFFFFFFFL;
+			long slotEnd = start + (sizes[first] & 0xFFFFFFFFL);
+			boolean overlapsPrevious = start < coveredEnd;
+			boolean overlapsNext = end < sorted.length && (datOffsets[sorted[end]] & 0xFFFFFFFFL) < slotEnd;
+			Integer owner = owners.get(first);
+			boolean reusable = owner != null && !overlapsPrevious && !overlapsNext;
+			for (int j = i + 1; j < end && reusable; j++) {
+				reusable = owner.equals(owners.get(sorted[j]));
+			}
+			if (reusable) {
+				slots.computeIfAbsent(owner, k -> new ArrayList<>()).add(first);
+			}
+			coveredEnd = Math.max(coveredEnd, slotEnd);
+			i = end;
+		}
+		return slots;
+	}
+
+	/**
+	 * Writes replacements into the existing .raf.dat. Each payload is written over a slot which only it will use if it
+	 * fits, otherwise it is appended. Every row replaced with the payload points at it. Only the TOC rows of replaced
+	 * entries are changed.
+	 * <p>
+	 * Slots are journalled before being overwritten, so an interrupted update can be rolled back.
+	 */
+	private void updateInPlace(Map<Integer, GeneratedReplacement> replacementData, Map<Integer, Integer> owners, long datLength) {
+		int[] newDatOffsets = datOffsets.clone();
+		int[] newSizes = sizes.clone();
+		Map<Integer, List<Integer>> reusableSlots = reusableSlots(owners);
+		RafJournal journal = new RafJournal(RafJournal.journalLocation(location), false, datLength);
+		try (FileChannel channel = FileChannel.open(datLocation, StandardOpenOption.WRITE)) {
+			long end = datLength;
+			List<Integer> written = new ArrayList<>();
+			for (Map.Entry<Integer, GeneratedReplacement> e : replacementData.entrySet()) {
+				int row = e.getKey();
+				if (owners.get(row) != row) {
+					continue;
 				}
-				byte[] oldData = new byte[entry.size];
-				old.readFully(oldData);
-				if (replacement == null) {
-					// Copy old
-					created.write(oldData);
-				} else {
-					boolean compressed = false;
-					if (entry.size >= 2) {
-						int magic = ((oldData[0] & 0xff) << 8) | (oldData[1] & 0xff);
-						compressed = (magic == 0x7801 || magic == 0x789c);
+				int length = e.getValue().data.length;
+				long offset = -1;
+				for (int slotRow : reusableSlots.getOrDefault(row, Collections.emptyList())) {
+					if (length <= sizes[slotRow]) {
+						offset = datOffsets[slotRow] & 0xFFFFFFFFL;
+						journal.undo(offset, readRaw(slotRow).array());
+						break;
 					}
-					oldData = compressed ? decompress(oldData) : oldData;
-					Backups.INSTANCE.setBytes(entry.getPath(), oldData);
-					byte[] replacementData = replacement.apply(oldData);
-					decompressedSize = replacementData.length;
-					if (compressed) {
-						replacementData = compress(replacementData);
-					}
-					expectedSize = replacementData.length;
-					entry.expectedRawBytes = replacementData;
-					created.write(replacementData);
 				}
-				entry.rafDatOffset = offset;
-				entry.size = (int) created.getFilePointer() - offset;
-				if (replacement != null) {
-					ReleaseManifest.INSTANCE.setSize(entry.getPath(), entry.size, decompressedSize);
+				if (offset == -1) {
+					offset = end;
+					end += length;
 				}
-				if (entry.size != expectedSize) {
-					throw new RuntimeException("Mismatched sizes! Expected " + expectedSize + ", got " + entry.size);
+				newDatOffsets[row] = (int) offset;
+				newSizes[row] = length;
+				written.add(row);
+			}
+			for (int row : replacementData.keySet()) {
+				int owner = owners.get(row);
+				newDatOffsets[row] = newDatOffsets[owner];
+				newSizes[row] = newSizes[owner];
+			}
+			journal.flush();
+
+			for (int row : written) {
+				ByteBuffer b = ByteBuffer.wrap(replacementData.get(row).data);
+				long offset = newDatOffsets[row] & 0xFFFFFFFFL;
+				while (b.hasRemaining()) {
+					channel.write(b, offset + b.position());
 				}
 			}
-		} catch (IOException e) {
-			if (Files.exists(rafDatBak)) {
-				if (Files.exists(rafDat)) {
-					try {
-						Files.delete(rafDat);
-					} catch (IOException e1) {
-						e.printStackTrace();
-						throw Throw.sneaky(e1);
+			if (RafJournal.SYNC != RafJournal.Sync.NONE) {
+				channel.force(false);
+			}
+
+			for (int row : replacementData.keySet()) {
+				journal.toc(tocOffset(row), newDatOffsets[row], newSizes[row]);
+			}
+			journalManifest(journal, replacementData);
+			journal.commit();
+		} catch (IOException | RuntimeException e) {
+			abort(journal);
+			throw new RuntimeException("Failed to update RAF.dat file " + datLocation, e);
+		}
+
+		datOffsets = newDatOffsets;
+		sizes = newSizes;
+		finish(journal);
+	}
+
+	/**
+	 * Writes a new .raf.dat containing every entry, packed in their current order, with replacements applied.
+	 * Each replacement payload and each slot shared by unchanged rows is written once.
+	 * With leagueskin.raf.dedupeRepack identical unchanged entries are also merged, at the cost of reading them.
+	 * <p>
+	 * It is written alongside as .raf.dat.new and only replaces the .raf.dat once the journal is committed.
+	 */
+	private void rewrite(Map<Integer, GeneratedReplacement> replacementData, Map<Integer, Integer> owners, long datLength) {
+		int[] sortedRows = rowsByDatOffset();
+		int[] newDatOffsets = datOffsets.clone();
+		int[] newSizes = sizes.clone();
+		// New offset of each written payload by owner row, and of each copied slot by old offset and size
+		Map<Integer, Long> writtenPayloads = new HashMap<>();
+		Map<Long, Long> copiedSlots = new HashMap<>();
+		// New offsets of unchanged entries by size and CRC32, for dedupeRepack
+		Map<Long, List<Long>> copiedContents = new HashMap<>();
+		Path newDatLocation = RafJournal.newDatLocation(datLocation);
+		RafJournal journal = new RafJournal(RafJournal.journalLocation(location), true, datLength);
+		try (FileChannel created = FileChannel.open(newDatLocation, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			journal.flush();
+			FileChannel old = datChannel();
+			// Adjacent unchanged entries are copied as one run, without passing through the heap
+			long written = 0;
+			long runStart = 0;
+			long runLength = 0;
+			for (int row : sortedRows) {
+				GeneratedReplacement generated = replacementData.get(row);
+				if (generated == null) {
+					long oldOffset = datOffsets[row] & 0xFFFFFFFFL;
+					long slot = (oldOffset << 32) | (sizes[row] & 0xFFFFFFFFL);
+					Long copied = copiedSlots.get(slot);
+					if (copied == null && DEDUPE_REPACK) {
+						copied = findCopy(row, created, copiedContents, written);
 					}
+					if (copied != null) {
+						newDatOffsets[row] = (int) (long) copied;
+						continue;
+					}
+					copiedSlots.put(slot, written);
+					if (DEDUPE_REPACK) {
+						// Already read, so written from the heap rather than transferred
+						if (runLength != 0) {
+							transfer(old, runStart, runLength, created);
+							runLength = 0;
+						}
+						ByteBuffer b = readRaw(row);
+						while (b.hasRemaining()) {
+							created.write(b);
+						}
+					} else {
+						if (runLength != 0 && runStart + runLength != oldOffset) {
+							transfer(old, runStart, runLength, created);
+							runLength = 0;
+						}
+						if (runLength == 0) {
+							runStart = oldOffset;
+						}
+						runLength += sizes[row] & 0xFFFFFFFFL;
+					}
+					newDatOffsets[row] = (int) written;
+					written += sizes[row] & 0xFFFFFFFFL;
+				} else {
+					int owner = owners.get(row);
+					newSizes[row] = generated.data.length;
+					Long payloadOffset = writtenPayloads.get(owner);
+					if (payloadOffset != null) {
+						newDatOffsets[row] = (int) (long) payloadOffset;
+						continue;
+					}
+					if (runLength != 0) {
+						transfer(old, runStart, runLength, created);
+						runLength = 0;
+					}
+					ByteBuffer b = ByteBuffer.wrap(generated.data);
+					while (b.hasRemaining()) {
+						created.write(b);
+					}
+					writtenPayloads.put(owner, written);
+					newDatOffsets[row] = (int) written;
+					written += generated.data.length;
 				}
-				try {
-					Files.move(rafDatBak, rafDat);
-				} catch (IOException e1) {
-					e.printStackTrace();
-					throw Throw.sneaky(e1);
-				}
 			}
-			throw new RuntimeException("Failed to open RAF.dat file " + rafDatBak, e);
+			if (runLength != 0) {
+				transfer(old, runStart, runLength, created);
+			}
+			if (created.size() != written) {
+				throw new RuntimeException("Mismatched sizes! Expected " + written + ", got " + created.size());
+			}
+			if (RafJournal.SYNC != RafJournal.Sync.NONE) {
+				created.force(false);
+			}
+
+			for (int row = 0; row < count; row++) {
+				journal.toc(tocOffset(row), newDatOffsets[row], newSizes[row]);
+			}
+			journalManifest(journal, replacementData);
+			journal.commit();
+		} catch (IOException | RuntimeException e) {
+			abort(journal);
+			throw new RuntimeException("Failed to rewrite RAF.dat file " + datLocation, e);
 		}
 
+		closeDatChannel();
 		try {
-			Files.delete(rafDatBak);
+			Files.move(newDatLocation, datLocation, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 		} catch (IOException e) {
-			throw Throw.sneaky(e);
+			// Committed, so the journal is left for this to be completed when the RAF is next opened
+			throw new RuntimeException("Failed to replace " + datLocation + " with " + newDatLocation, e);
+		} finally {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				Log.warn("Failed to close journal for " + location, e);
+			}
 		}
+		datOffsets = newDatOffsets;
+		sizes = newSizes;
+		finish(journal);
+	}
 
-		for (RafEntry entry : rafEntryList) {
-			buffer.position(entry.rafOffset + 4); // skip hash
-			buffer.putInt(entry.rafDatOffset);
-			buffer.putInt(entry.size);
+	/**
+	 * Finds an identical copy of an unchanged entry already written to the new .raf.dat, comparing contents read back
+	 * from it. If there is none the entry is recorded as about to be written at the given offset.
+	 *
+	 * @return offset of the copy, or null
+	 */
+	private Long findCopy(int row, FileChannel created, Map<Long, List<Long>> copiedContents, long offset) throws IOException {
+		byte[] data = readRaw(row).array();
+		long key = ((long) data.length << 32) | RafCodec.checksum(data);
+		List<Long> candidates = copiedContents.computeIfAbsent(key, k -> new ArrayList<>());
+		for (long candidate : candidates) {
+			ByteBuffer existing = ByteBuffer.allocate(data.length);
+			while (existing.hasRemaining()) {
+				if (created.read(existing, candidate + existing.position()) == -1) {
+					throw new EOFException("Reached end of " + created + " reading back copy at " + candidate);
+				}
+			}
+			if (Arrays.equals(existing.array(), data)) {
+				return candidate;
+			}
 		}
-		buffer.force();
+		candidates.add(offset);
+		return null;
+	}
 
-		sanityCheck();
+	private void journalManifest(RafJournal journal, Map<Integer, GeneratedReplacement> replacementData) throws IOException {
+		for (Map.Entry<Integer, GeneratedReplacement> e : replacementData.entrySet()) {
+			GeneratedReplacement generated = e.getValue();
+			journal.manifest(ReleaseManifest.INSTANCE.getOffset(path(e.getKey())), generated.decompressedSize, generated.data.length, generated.md5);
+		}
 	}
 
-	private void sanityCheck() {
-		rafEntryList.forEach(RafEntry::checkExpectedBytes);
+	/**
+	 * Applies a committed journal's TOC and manifest edits. It is deleted once the manifest is next forced to disk,
+	 * which is done once per install.
+	 */
+	private void finish(RafJournal journal) {
+		try {
+			journal.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to close journal for " + location, e);
+		}
+		journal.apply(buffer);
+		ReleaseManifest.INSTANCE.whenForced(journal::finish);
+	}
 
-		List<FileEntry> oldList = new ArrayList<>(rafEntryList);
-		rafEntryList.clear();
+	/**
+	 * Recovers from a failed update using its journal, then reloads the TOC to match
+	 */
+	private void abort(RafJournal journal) {
+		try {
+			journal.close();
+		} catch (IOException e) {
+			Log.warn("Failed to close journal for " + location, e);
+		}
+		closeDatChannel();
+		RafJournal.recover(location, datLocation, buffer);
 		parse();
-		for (int i = 0; i < rafEntryList.size(); i++) {
-			FileEntry old = oldList.get(i);
-			RafEntry now = rafEntryList.get(i);
-			if (!old.toString().equals(now.toString())) {
-				Log.warn("Mismatch before/after reparse before: " + old + ", now: " + now);
+	}
+
+	private synchronized FileChannel datChannel() throws IOException {
+		if (datChannel == null || !datChannel.isOpen()) {
+			datChannel = FileChannel.open(datLocation, StandardOpenOption.READ);
+		}
+		return datChannel;
+	}
+
+	private synchronized void closeDatChannel() {
+		if (datChannel != null) {
+			try {
+				datChannel.close();
+			} catch (IOException e) {
+				Log.warn("Failed to close " + datLocation, e);
+			}
+			datChannel = null;
+		}
+	}
+
+	/**
+	 * Reads the raw .raf.dat contents of a row using the shared channel. Positional reads, so safe to call concurrently.
+	 */
+	private ByteBuffer readRaw(int row) throws IOException {
+		long offset = datOffsets[row] & 0xFFFFFFFFL;
+		ByteBuffer data = ByteBuffer.allocate(sizes[row]);
+		FileChannel channel = datChannel();
+		while (data.hasRemaining()) {
+			if (channel.read(data, offset + data.position()) == -1) {
+				throw new EOFException("Reached end of " + datLocation + " reading " + new RafEntry(row));
+			}
+		}
+		data.flip();
+		return data;
+	}
+
+	private static void transfer(FileChannel from, long position, long count, FileChannel to) throws IOException {
+		while (count > 0) {
+			long transferred = from.transferTo(position, count, to);
+			if (transferred <= 0) {
+				if (position + count > from.size()) {
+					throw new EOFException("Failed to copy " + count + " bytes at " + position + ", only " + from.size() + " bytes available");
+				}
+				// transferTo may not make progress on some platforms, fall back to copying through a small buffer
+				try (ReadableByteChannel range = new RangeChannel(from, position, count)) {
+					copy(range, to);
+				}
+				return;
 			}
-			if (now.hash != rafHash(now.getPath())) {
-				Log.warn("Incorrect RAF hash for " + now + " got: " + now.hash + " expected " + rafHash(now.getFileName()));
+			position += transferred;
+			count -= transferred;
+		}
+	}
+
+	private static void copy(ReadableByteChannel from, WritableByteChannel to) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		while (from.read(buffer) != -1) {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				to.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Decompresses the old data if needed, backs it up, runs the replacement and compresses the result to match.
+	 * Replacements shared with other entries or a previous install come from the payload cache.
+	 * Runs on the replacement pool, so must not touch the TOC.
+	 */
+	private static GeneratedReplacement generateReplacement(String path, byte[] oldData, ReplacementGeneratorWrapper replacement) throws IOException {
+		boolean compressed = RafCodec.isCompressed(oldData);
+		oldData = compressed ? RafCodec.decompress(oldData, ReleaseManifest.INSTANCE.getSize(path)) : oldData;
+		Backups.INSTANCE.setBytes(path, oldData);
+		byte[] replacementData = PayloadCache.INSTANCE.generated(replacement, oldData);
+		int decompressedSize = replacementData.length;
+		// The manifest lists the md5 of uncompressed contents
+		byte[] md5 = md5(replacementData);
+		if (compressed) {
+			replacementData = PayloadCache.INSTANCE.deflated(replacementData);
+		}
+		long checksum = RafCodec.VERIFICATION == RafCodec.Verification.NONE ? 0 : RafCodec.checksum(replacementData);
+		return new GeneratedReplacement(replacementData, decompressedSize, md5, checksum);
+	}
+
+	private static byte[] md5(byte[] data) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw Throw.sneaky(e);
+		}
+	}
+
+	/**
+	 * Checks rows changed by an update. The TOC as written to the .raf must match the index, and replaced contents
+	 * must match the checksums recorded when they were generated.
+	 */
+	private void sanityCheck(int[] changedRows, Map<Integer, Long> expectedChecksums) {
+		for (int row : changedRows) {
+			int tocOffset = tocOffset(row);
+			RafEntry entry = new RafEntry(row);
+			if (buffer.getInt(tocOffset) != hashes[row] || buffer.getInt(tocOffset + 4) != datOffsets[row] || buffer.getInt(tocOffset + 8) != sizes[row]) {
+				throw new RuntimeException("Mismatch between written TOC and index for " + entry + ", TOC has size " + buffer.getInt(tocOffset + 8) + " at offset " + buffer.getInt(tocOffset + 4));
+			}
+			if (hashes[row] != rafHash(buffer, nameOffsets[row], nameLengths[row])) {
+				Log.warn("Incorrect RAF hash for " + entry + " got: " + hashes[row] + " expected " + rafHash(entry.getPath()));
+			}
+			Long expectedChecksum = expectedChecksums.get(row);
+			if (expectedChecksum != null) {
+				long checksum;
+				try (ReadableByteChannel channel = entry.openRawChannel()) {
+					checksum = RafCodec.checksum(channel);
+				} catch (IOException e) {
+					throw Throw.sneaky(e);
+				}
+				if (checksum != expectedChecksum) {
+					throw new RuntimeException("Mismatch for expected checksum of " + entry);
+				}
 			}
 		}
 	}
@@ -282,7 +884,7 @@ public class Raf implements FileSource {
 		int magic = buffer.getInt();
 		int version = buffer.getInt();
 		int riotIndex = buffer.getInt();
-		int fileListOffset = buffer.getInt();
+		fileListOffset = buffer.getInt();
 		int stringTableOffset = buffer.getInt();
 
 		if (DEBUG_PARSE) {
@@ -300,19 +902,29 @@ public class Raf implements FileSource {
 			Log.trace("Entries in file list: " + count);
 		}
 
-		for (int i = 0; i < count; i++) {
-			int rafOffset = buffer.position();
-			int hash = buffer.getInt();
-			int rafDatOffset = buffer.getInt();
-			int size = buffer.getInt();
+		int[] hashes = new int[count];
+		int[] datOffsets = new int[count];
+		int[] sizes = new int[count];
+		// String table index -> TOC row, so names can be resolved in a single pass
+		int[] rowForString = new int[count];
+		Arrays.fill(rowForString, -1);
+		for (int row = 0; row < count; row++) {
+			hashes[row] = buffer.getInt();
+			datOffsets[row] = buffer.getInt();
+			sizes[row] = buffer.getInt();
 			int stringTableIndex = buffer.getInt();
 			if (DEBUG_PARSE) {
-				Log.trace("Hash is " + hash);
-				Log.trace("Offset is " + rafDatOffset);
-				Log.trace("Size is " + size);
+				Log.trace("Hash is " + hashes[row]);
+				Log.trace("Offset is " + datOffsets[row]);
+				Log.trace("Size is " + sizes[row]);
 				Log.trace("String table index is " + stringTableIndex);
 			}
-			rafEntryList.add(new RafEntry(rafOffset, rafDatOffset, size, stringTableIndex, hash));
+			if (stringTableIndex < 0 || stringTableIndex >= count) {
+				throw new RuntimeException("String table index " + stringTableIndex + " out of range for " + count + " entries in " + name);
+			}
+			if (rowForString[stringTableIndex] == -1) {
+				rowForString[stringTableIndex] = row;
+			}
 		}
 
 		// String table
@@ -322,117 +934,259 @@ public class Raf implements FileSource {
 			throw new RuntimeException("Disagreeing counts - string table count does not match file count");
 		}
 
+		// Not kept in IndexCache, checking the cache would read the same string table index this reads
+		int[] nameOffsets = new int[count];
+		int[] nameLengths = new int[count];
+		int[] hashIndex = new int[Integer.highestOneBit(Math.max(count, 1)) << 2];
+		indexNames(stringTableOffset, count, hashes, rowForString, nameOffsets, nameLengths, hashIndex);
+
+		this.count = count;
+		this.hashes = hashes;
+		this.datOffsets = datOffsets;
+		this.sizes = sizes;
+		this.nameOffsets = nameOffsets;
+		this.nameLengths = nameLengths;
+		this.paths = new String[count];
+		this.hashIndex = hashIndex;
+	}
+
+	/**
+	 * Finds each row's name in the string table, and builds the hash index
+	 */
+	private void indexNames(int stringTableOffset, int count, int[] hashes, int[] rowForString, int[] nameOffsets, int[] nameLengths, int[] hashIndex) {
+		buffer.position(stringTableOffset + 8);
 		for (int i = 0; i < count; i++) {
 			int offset = buffer.getInt();
-
 			int length = buffer.getInt();
-			byte[] bytes = new byte[length - 1]; // -1 to remove null char, ignored.
-			int oldPos = buffer.position();
-			buffer.position(offset + stringTableOffset);
-			buffer.get(bytes);
-			String name;
-			try {
-				name = '/' + new String(bytes, "UTF-8");
-			} catch (UnsupportedEncodingException e) {
-				throw Throw.sneaky(e);
+			int row = rowForString[i];
+			if (row != -1) {
+				nameOffsets[row] = offset + stringTableOffset;
+				nameLengths[row] = length - 1; // -1 to remove null char, ignored.
 			}
-			for (RafEntry rafEntry : rafEntryList) {
-				if (rafEntry.stringTableIndex == i) {
-					rafEntry.path = name; // For consistency with ReleaseManifest names
-					break;
-				}
-			}
-			fileNames.add(name);
 			if (DEBUG_PARSE) {
 				Log.trace("String " + i + " offset " + offset);
 				Log.trace("String " + i + " length " + length);
-				Log.trace("String " + i + " is \"" + name + '"');
 			}
-			buffer.position(oldPos);
+		}
+
+		// Keyed by the hash stored in the TOC, as the game looks entries up. Rows whose stored hash doesn't match their
+		// name can't be found by it, update finds these by name and warns.
+		int mask = hashIndex.length - 1;
+		for (int row = 0; row < count; row++) {
+			int i = mix(hashes[row]) & mask;
+			while (hashIndex[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			hashIndex[i] = row + 1;
 		}
 	}
 
 	public void dump() {
-		int entries = rafEntryList.size();
-		int size = 0;
-		for (RafEntry rafEntry : rafEntryList) {
+		long size = 0;
+		for (int row = 0; row < count; row++) {
 			if (DEBUG_DUMP) {
-				Log.trace(rafEntry + " in " + name);
+				Log.trace(new RafEntry(row) + " in " + name);
 			}
-			size += rafEntry.size;
+			size += sizes[row] & 0xFFFFFFFFL;
 		}
-		Log.trace(entries + " entries in " + name + " RAF of total size " + humanReadableByteCount(size, false));
+		Log.trace(count + " entries in " + name + " RAF of total size " + humanReadableByteCount(size, false));
 	}
 
 	public String toString() {
-		return name + " RAF with " + rafEntryList.size() + " entries";
+		return name + " RAF with " + count + " entries";
+	}
+
+	/**
+	 * Read only view of part of a FileChannel, using positional reads so several can share one channel.
+	 * Closing does not close the underlying channel.
+	 */
+	private static class RangeChannel implements ReadableByteChannel {
+		private final FileChannel channel;
+		private final long end;
+		private long position;
+		private boolean open = true;
+
+		RangeChannel(FileChannel channel, long position, long count) {
+			this.channel = channel;
+			this.position = position;
+			this.end = position + count;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (!open) {
+				throw new ClosedChannelException();
+			}
+			long remaining = end - position;
+			if (remaining <= 0) {
+				return -1;
+			}
+			int oldLimit = dst.limit();
+			if (dst.remaining() > remaining) {
+				dst.limit(dst.position() + (int) remaining);
+			}
+			int read;
+			try {
+				read = channel.read(dst, position);
+			} finally {
+				dst.limit(oldLimit);
+			}
+			if (read == -1) {
+				throw new EOFException("Reached end of file with " + remaining + " bytes left to read");
+			}
+			position += read;
+			return read;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() {
+			open = false;
+		}
+	}
+
+	/**
+	 * When manifest sizes which don't match the RAF are corrected, set with leagueskin.manifest.fix
+	 */
+	private enum ManifestFix {
+		/**
+		 * While opening the RAF
+		 */
+		EAGER,
+		/**
+		 * On a bounded pool after opening, leagueskin.manifest.fixThreads, finished before the RAF is updated
+		 */
+		BACKGROUND,
+		/**
+		 * When the RAF is first updated, so RAFs no install touches are never corrected
+		 */
+		LAZY
+	}
+
+	/**
+	 * Raw replacement data compared by contents
+	 */
+	private static class Payload {
+		final byte[] data;
+		final int hash;
+
+		Payload(byte[] data) {
+			this.data = data;
+			this.hash = Arrays.hashCode(data);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Payload && hash == ((Payload) o).hash && Arrays.equals(data, ((Payload) o).data);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	private static class GeneratedReplacement {
+		// Raw bytes to store in the .raf.dat
+		final byte[] data;
+		final int decompressedSize;
+		final byte[] md5;
+		final long checksum;
+
+		GeneratedReplacement(byte[] data, int decompressedSize, byte[] md5, long checksum) {
+			this.data = data;
+			this.decompressedSize = decompressedSize;
+			this.md5 = md5;
+			this.checksum = checksum;
+		}
 	}
 
+	/**
+	 * View of a single row in the TOC. Holds no state of its own, so stays valid across updates.
+	 */
 	public class RafEntry implements FileEntry {
-		private String path;
-		private int rafOffset;
-		private int rafDatOffset;
-		private int size;
-		private int stringTableIndex;
-		private int hash;
-		private byte[] expectedRawBytes;
-
-		public RafEntry(int rafOffset, int rafDatOffset, int size, int stringTableIndex, int hash) {
-			this.rafOffset = rafOffset;
-			this.rafDatOffset = rafDatOffset;
-			this.size = size;
-			this.stringTableIndex = stringTableIndex;
-			this.hash = hash;
+		private final int row;
+
+		private RafEntry(int row) {
+			this.row = row;
 		}
 
 		public String toString() {
-			return path + " is of size " + humanReadableByteCount(size, false) + " at offset " + rafDatOffset;
+			return path(row) + " is of size " + humanReadableByteCount(sizes[row], false) + " at offset " + datOffsets[row];
 		}
 
 		@Override
 		public String getPath() {
-			return path;
-		}
-
-		public void checkExpectedBytes() {
-			if (expectedRawBytes != null && !Arrays.equals(expectedRawBytes, getRawBytes())) {
-				throw new RuntimeException("Mismatch for expected contents of " + this);
-			}
+			return path(row);
 		}
 
 		@Override
 		public byte[] getRawBytes() {
-			Path rafDat = Paths.get(location.toString() + ".dat");
-			byte[] data;
-			try (RandomAccessFile raf = new RandomAccessFile(rafDat.toFile(), "r")) {
-				data = new byte[size];
-				raf.seek(rafDatOffset);
-				raf.readFully(data);
+			try {
+				return readRaw(row).array();
 			} catch (IOException e) {
 				throw Throw.sneaky(e);
 			}
-			return data;
 		}
 
 		@Override
 		public byte[] getDecompressedBytes() {
 			byte[] data = getRawBytes();
-			if (size >= 2) {
-				short magic = (short) ((((data[0] & 0xff) << 8)) | (data[1] & 0xff));
-				if (magic == 0x7801 || magic == 0x789c) {
-					try {
-						data = decompress(data);
-					} catch (RuntimeException e) {
-						throw new RuntimeException("Failed to decompress " + toString(), e);
-					}
+			if (RafCodec.isCompressed(data)) {
+				try {
+					data = RafCodec.decompress(data, ReleaseManifest.INSTANCE.getSize(getPath()));
+				} catch (RuntimeException e) {
+					throw new RuntimeException("Failed to decompress " + toString(), e);
 				}
 			}
 			return data;
 		}
 
+		@Override
+		public ReadableByteChannel openRawChannel() {
+			try {
+				return new RangeChannel(datChannel(), datOffsets[row] & 0xFFFFFFFFL, sizes[row] & 0xFFFFFFFFL);
+			} catch (IOException e) {
+				throw Throw.sneaky(e);
+			}
+		}
+
+		@Override
+		public InputStream openDecompressedStream() {
+			byte[] magic = new byte[Math.min(2, sizes[row])];
+			try (InputStream in = Channels.newInputStream(openRawChannel())) {
+				new DataInputStream(in).readFully(magic);
+			} catch (IOException e) {
+				throw Throw.sneaky(e);
+			}
+			InputStream raw = Channels.newInputStream(openRawChannel());
+			// The Inflater created by InflaterInputStream is ended when the stream is closed
+			return RafCodec.isCompressed(magic) ? new InflaterInputStream(new BufferedInputStream(raw, 64 * 1024)) : raw;
+		}
+
 		@Override
 		public int getSizeOnDisk() {
-			return size;
+			return sizes[row];
+		}
+
+		@Override
+		public int getDecompressedSize() {
+			byte[] magic = new byte[Math.min(2, sizes[row])];
+			try {
+				datChannel().read(ByteBuffer.wrap(magic), datOffsets[row] & 0xFFFFFFFFL);
+				if (!RafCodec.isCompressed(magic)) {
+					return sizes[row];
+				}
+				try (ReadableByteChannel channel = openRawChannel()) {
+					return (int) RafCodec.decompressedSize(channel);
+				}
+			} catch (IOException e) {
+				throw Throw.sneaky(e);
+			}
 		}
 	}
 }
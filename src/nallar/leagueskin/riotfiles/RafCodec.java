@@ -0,0 +1,198 @@
+package nallar.leagueskin.riotfiles;
+
+import nallar.leagueskin.Log;
+import nallar.leagueskin.util.Throw;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * zlib compression of .raf.dat entries.
+ * Inflaters and Deflaters are pooled, instances which don't fit in the pool are ended immediately rather than leaving
+ * their native memory to be freed on finalization.
+ * Threadsafe.
+ */
+public class RafCodec {
+	/**
+	 * How compressed replacements are checked, set with leagueskin.raf.verify
+	 */
+	public static final Verification VERIFICATION = Verification.valueOf(System.getProperty("leagueskin.raf.verify", "CHECKSUM").toUpperCase());
+	private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+	private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+	private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+	// Scratch space for decompressedSize and checksum, contents are thrown away
+	private static final ThreadLocal<byte[]> countInput = ThreadLocal.withInitial(() -> new byte[16 * 1024]);
+	private static final ThreadLocal<byte[]> countOutput = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
+	public static boolean isCompressed(byte[] data) {
+		if (data.length < 2) {
+			return false;
+		}
+		int magic = ((data[0] & 0xff) << 8) | (data[1] & 0xff);
+		return magic == 0x7801 || magic == 0x789c;
+	}
+
+	public static byte[] decompress(byte[] input) {
+		return decompress(input, -1);
+	}
+
+	/**
+	 * @param expectedSize Decompressed size if known, eg from the release manifest, or -1.
+	 *                     If correct the result is decoded directly into an array of this size.
+	 */
+	public static byte[] decompress(byte[] input, int expectedSize) {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		try {
+			inflater.setInput(input);
+			byte[] output = new byte[expectedSize >= 0 ? expectedSize : Math.max(64, input.length * 4)];
+			int length = 0;
+			while (!inflater.finished()) {
+				if (length == output.length) {
+					// Output may be complete with only the trailer left, which a zero length inflate consumes
+					inflater.inflate(output, length, 0);
+					if (inflater.finished()) {
+						break;
+					}
+					output = Arrays.copyOf(output, Math.max(64, output.length * 2));
+				}
+				int n = inflater.inflate(output, length, output.length - length);
+				if (n == 0 && !inflater.finished()) {
+					Log.warn("Needs input: " + inflater.needsInput());
+					Log.warn("Needs dictionary: " + inflater.needsDictionary());
+					throw new RuntimeException("Failed to decompress, bad input");
+				}
+				length += n;
+			}
+			return length == output.length ? output : Arrays.copyOf(output, length);
+		} catch (DataFormatException e) {
+			throw Throw.sneaky(e);
+		} finally {
+			release(inflater);
+		}
+	}
+
+	/**
+	 * Finds the decompressed size of a compressed entry without keeping its contents.
+	 * Streams through small per thread buffers, so uses no more memory for large entries.
+	 */
+	public static long decompressedSize(ReadableByteChannel raw) throws IOException {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		try {
+			byte[] input = countInput.get();
+			byte[] output = countOutput.get();
+			ByteBuffer inputBuffer = ByteBuffer.wrap(input);
+			long size = 0;
+			while (!inflater.finished()) {
+				if (inflater.needsInput()) {
+					inputBuffer.clear();
+					int read = raw.read(inputBuffer);
+					if (read == -1) {
+						throw new EOFException("Compressed data ended before end of zlib stream");
+					}
+					inflater.setInput(input, 0, read);
+				} else if (inflater.needsDictionary()) {
+					throw new RuntimeException("Failed to decompress, needs dictionary");
+				}
+				size += inflater.inflate(output);
+			}
+			return size;
+		} catch (DataFormatException e) {
+			throw Throw.sneaky(e);
+		} finally {
+			release(inflater);
+		}
+	}
+
+	public static byte[] compress(byte[] input) {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater();
+		}
+		byte[] compressed;
+		try {
+			deflater.setInput(input);
+			deflater.finish();
+			int n = input.length;
+			// zlib's compressBound, output should never need to grow
+			byte[] output = new byte[n + (n >> 12) + (n >> 14) + (n >> 25) + 13];
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == output.length) {
+					output = Arrays.copyOf(output, output.length * 2);
+				}
+				length += deflater.deflate(output, length, output.length - length);
+			}
+			compressed = Arrays.copyOf(output, length);
+		} finally {
+			release(deflater);
+		}
+		if (VERIFICATION == Verification.ROUND_TRIP && !Arrays.equals(decompress(compressed, input.length), input)) {
+			throw new RuntimeException("Mismatch!");
+		}
+		return compressed;
+	}
+
+	/**
+	 * Checksum of raw .raf.dat contents, recorded when writing replacements so they can be checked after the update.
+	 */
+	public static long checksum(byte[] data) {
+		CRC32 crc32 = new CRC32();
+		crc32.update(data, 0, data.length);
+		return crc32.getValue();
+	}
+
+	/**
+	 * Checksum of raw .raf.dat contents read back from disk, streamed through a small per thread buffer.
+	 */
+	public static long checksum(ReadableByteChannel raw) throws IOException {
+		CRC32 crc32 = new CRC32();
+		byte[] input = countInput.get();
+		ByteBuffer inputBuffer = ByteBuffer.wrap(input);
+		int read;
+		while ((read = raw.read(inputBuffer)) != -1) {
+			crc32.update(input, 0, read);
+			inputBuffer.clear();
+		}
+		return crc32.getValue();
+	}
+
+	public enum Verification {
+		/**
+		 * No checks
+		 */
+		NONE,
+		/**
+		 * Written data is checked against its CRC32. Compressed output is not checked, its zlib trailer is computed from
+		 * the input by the same Deflater so comparing it to the input's Adler-32 can't catch a corrupt body.
+		 */
+		CHECKSUM,
+		/**
+		 * Compressed output is decompressed and compared to the input, written data is checked against its CRC32
+		 */
+		ROUND_TRIP
+	}
+
+	private static void release(Inflater inflater) {
+		inflater.reset();
+		if (!inflaters.offer(inflater)) {
+			inflater.end();
+		}
+	}
+
+	private static void release(Deflater deflater) {
+		deflater.reset();
+		if (!deflaters.offer(deflater)) {
+			deflater.end();
+		}
+	}
+}
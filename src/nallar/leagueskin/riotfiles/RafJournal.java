@@ -0,0 +1,304 @@
+package nallar.leagueskin.riotfiles;
+
+import nallar.leagueskin.Log;
+import nallar.leagueskin.util.Throw;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.zip.*;
+
+/**
+ * Write-ahead journal for updates to a RAF and the release manifest, stored next to the .raf as .raf.journal
+ * <p>
+ * An update first journals the previous contents of any part of the .raf.dat it will overwrite, then writes its data,
+ * then journals the TOC and manifest edits followed by a commit record. Only then are the edits applied. If the
+ * process dies before the commit record is written the .raf.dat is rolled back, otherwise the edits are rolled forward
+ * the next time the RAF is opened. Journals of applied updates are deleted once the manifest is forced to disk at the
+ * end of the install.
+ * <p>
+ * Full rewrites write a new .raf.dat.new instead of overwriting, which replaces the .raf.dat once committed.
+ */
+class RafJournal implements Closeable {
+	/**
+	 * When journal and data are forced to disk, set with leagueskin.journal.sync
+	 */
+	static final Sync SYNC = Sync.valueOf(System.getProperty("leagueskin.journal.sync", "GROUPED").toUpperCase());
+	private static final int MAGIC = 0x4C534A32; // LSJ2
+	private static final byte UNDO = 1;
+	private static final byte TOC = 2;
+	private static final byte MANIFEST = 3;
+	private static final byte COMMIT = 0x7F;
+	private final Path location;
+	private final FileChannel channel;
+	private final CRC32 crc32 = new CRC32();
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private DataOutputStream out = new DataOutputStream(pending);
+
+	/**
+	 * Starts a new journal, replacing any existing one. Call {@link #recover} first.
+	 *
+	 * @param rewrite            whether the update writes a new .raf.dat.new rather than changing the .raf.dat
+	 * @param originalDatLength  length of the .raf.dat before the update, it is truncated back to this on roll back
+	 */
+	RafJournal(Path location, boolean rewrite, long originalDatLength) {
+		this.location = location;
+		try {
+			channel = FileChannel.open(location, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			out.writeInt(MAGIC);
+			out.writeBoolean(rewrite);
+			out.writeLong(originalDatLength);
+			out.writeUTF(ReleaseManifest.INSTANCE.getLocation().toAbsolutePath().toString());
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to create journal " + location, e);
+		}
+	}
+
+	static Path journalLocation(Path rafLocation) {
+		return Paths.get(rafLocation.toString() + ".journal");
+	}
+
+	static Path newDatLocation(Path datLocation) {
+		return Paths.get(datLocation.toString() + ".new");
+	}
+
+	/**
+	 * Records the current contents of part of the .raf.dat which is about to be overwritten
+	 */
+	void undo(long datOffset, byte[] previous) throws IOException {
+		out.writeByte(UNDO);
+		out.writeLong(datOffset);
+		out.writeInt(previous.length);
+		out.write(previous);
+	}
+
+	void toc(int tocOffset, int datOffset, int size) throws IOException {
+		out.writeByte(TOC);
+		out.writeInt(tocOffset);
+		out.writeInt(datOffset);
+		out.writeInt(size);
+	}
+
+	void manifest(int manifestOffset, int size, int compressedSize, byte[] md5) throws IOException {
+		out.writeByte(MANIFEST);
+		out.writeInt(manifestOffset);
+		out.writeInt(size);
+		out.writeInt(compressedSize);
+		out.write(md5);
+	}
+
+	/**
+	 * Writes records so far to the journal file, forcing them to disk unless sync is disabled
+	 */
+	void flush() throws IOException {
+		out.flush();
+		byte[] bytes = pending.toByteArray();
+		crc32.update(bytes, 0, bytes.length);
+		ByteBuffer b = ByteBuffer.wrap(bytes);
+		while (b.hasRemaining()) {
+			channel.write(b);
+		}
+		pending = new ByteArrayOutputStream();
+		out = new DataOutputStream(pending);
+		if (SYNC != Sync.NONE) {
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * Writes the commit record. Once this returns the update will be completed even if the process dies.
+	 */
+	void commit() throws IOException {
+		flush();
+		out.writeByte(COMMIT);
+		out.writeLong(crc32.getValue());
+		flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Deletes the closed journal, once the update it records has been fully applied and forced to disk
+	 */
+	void finish() {
+		try {
+			Files.deleteIfExists(location);
+		} catch (IOException e) {
+			Log.warn("Failed to delete journal " + location, e);
+		}
+	}
+
+	/**
+	 * Rolls back or forward an update left incomplete by a previous run, then deletes its journal
+	 *
+	 * @param tocBuffer mapped .raf
+	 */
+	static void recover(Path rafLocation, Path datLocation, MappedByteBuffer tocBuffer) {
+		Path location = journalLocation(rafLocation);
+		Path newDatLocation = newDatLocation(datLocation);
+		if (!Files.exists(location)) {
+			return;
+		}
+		try {
+			byte[] journal = Files.readAllBytes(location);
+			int committedLength = committedLength(journal);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal, 0, committedLength == -1 ? journal.length : committedLength));
+			boolean rewrite;
+			long originalDatLength;
+			String manifestLocation;
+			try {
+				if (in.readInt() != MAGIC) {
+					throw new IOException("Not a RAF journal");
+				}
+				rewrite = in.readBoolean();
+				originalDatLength = in.readLong();
+				manifestLocation = in.readUTF();
+			} catch (EOFException e) {
+				if (committedLength != -1) {
+					throw e;
+				}
+				// Header never fully reached disk, and nothing is written before it is, so nothing was changed
+				Files.deleteIfExists(newDatLocation);
+				Files.delete(location);
+				return;
+			}
+			if (committedLength == -1) {
+				Log.warn("Rolling back incomplete update of " + rafLocation);
+				if (rewrite) {
+					Files.deleteIfExists(newDatLocation);
+				} else {
+					rollBack(in, datLocation, originalDatLength);
+				}
+			} else {
+				Log.warn("Completing interrupted update of " + rafLocation);
+				if (rewrite && Files.exists(newDatLocation)) {
+					Files.move(newDatLocation, datLocation, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				}
+				boolean sameManifest = ReleaseManifest.INSTANCE.getLocation().toAbsolutePath().toString().equals(manifestLocation);
+				if (!sameManifest) {
+					Log.warn("Not applying journalled manifest changes, they were for " + manifestLocation);
+				}
+				rollForward(in, tocBuffer, sameManifest, true);
+			}
+			Files.delete(location);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to recover " + rafLocation + " from journal " + location, e);
+		}
+	}
+
+	/**
+	 * @return length of the journal up to and including a valid commit record, or -1 if it was not committed
+	 */
+	private static int committedLength(byte[] journal) {
+		int commitOffset = journal.length - 9;
+		if (commitOffset < 0 || journal[commitOffset] != COMMIT) {
+			return -1;
+		}
+		CRC32 crc32 = new CRC32();
+		crc32.update(journal, 0, commitOffset);
+		long expected = ByteBuffer.wrap(journal, commitOffset + 1, 8).getLong();
+		return crc32.getValue() == expected ? journal.length : -1;
+	}
+
+	private static void rollBack(DataInputStream in, Path datLocation, long originalDatLength) throws IOException {
+		try (FileChannel dat = FileChannel.open(datLocation, StandardOpenOption.WRITE)) {
+			while (in.available() > 0) {
+				// Records after the last complete one may be cut off, they were never acted on
+				byte type = in.readByte();
+				if (type != UNDO) {
+					break;
+				}
+				long datOffset = in.readLong();
+				int length = in.readInt();
+				if (in.available() < length) {
+					break;
+				}
+				byte[] previous = new byte[length];
+				in.readFully(previous);
+				ByteBuffer b = ByteBuffer.wrap(previous);
+				while (b.hasRemaining()) {
+					dat.write(b, datOffset + b.position());
+				}
+			}
+			if (dat.size() > originalDatLength) {
+				dat.truncate(originalDatLength);
+			}
+			dat.force(false);
+		}
+	}
+
+	/**
+	 * @param forceManifest whether to force manifest changes to disk, otherwise that is left to the end of the install
+	 */
+	private static void rollForward(DataInputStream in, MappedByteBuffer tocBuffer, boolean applyManifest, boolean forceManifest) throws IOException {
+		while (true) {
+			byte type = in.readByte();
+			switch (type) {
+				case UNDO:
+					in.readLong();
+					in.skipBytes(in.readInt());
+					break;
+				case TOC:
+					int tocOffset = in.readInt();
+					tocBuffer.putInt(tocOffset + 4, in.readInt()); // skip hash
+					tocBuffer.putInt(tocOffset + 8, in.readInt());
+					break;
+				case MANIFEST:
+					int manifestOffset = in.readInt();
+					int size = in.readInt();
+					int compressedSize = in.readInt();
+					byte[] md5 = new byte[16];
+					in.readFully(md5);
+					if (applyManifest) {
+						ReleaseManifest.INSTANCE.setSizeAt(manifestOffset, size, compressedSize, md5);
+					}
+					break;
+				case COMMIT:
+					tocBuffer.force();
+					if (forceManifest) {
+						ReleaseManifest.INSTANCE.force();
+					}
+					return;
+				default:
+					throw new IOException("Unknown journal record type " + type);
+			}
+		}
+	}
+
+	/**
+	 * Applies the TOC and manifest edits of this committed journal. Done by reading back what was written, so a
+	 * normal update applies its changes exactly as recovery would.
+	 */
+	void apply(MappedByteBuffer tocBuffer) {
+		try {
+			byte[] journal = Files.readAllBytes(location);
+			if (committedLength(journal) == -1) {
+				throw new IllegalStateException("Journal " + location + " must be committed before it is applied");
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal));
+			in.readInt();
+			in.readBoolean();
+			in.readLong();
+			in.readUTF();
+			rollForward(in, tocBuffer, true, false);
+		} catch (IOException e) {
+			throw Throw.sneaky(e);
+		}
+	}
+
+	enum Sync {
+		/**
+		 * Journal records and data are forced to disk once per step of an update: before overwriting data, before
+		 * committing and after committing
+		 */
+		GROUPED,
+		/**
+		 * Never forced, only protects against the process dying rather than the OS
+		 */
+		NONE
+	}
+}
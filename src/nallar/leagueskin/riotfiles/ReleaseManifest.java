@@ -7,23 +7,49 @@ import nallar.leagueskin.util.Throw;
 import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
+import java.nio.charset.*;
 import java.nio.file.*;
 import java.util.*;
-
+import java.util.zip.*;
+
+/**
+ * Parses the release manifest, which lists the size of every game file.
+ * The mapped file is the only copy of directory and file records, they are read through {@link DirEntry} and
+ * {@link ManifestEntry} views when accessed. Only string offsets, each record's parent and a hash index of records
+ * by parent and name are built up front.
+ */
 public class ReleaseManifest {
 	public static final ReleaseManifest INSTANCE = new ReleaseManifest(PathUtil.releaseDirectory(PathUtil.releasesDirectory()).resolve("releasemanifest"));
 	private static final int EXPECTED_MAX_SIZE = 1024 * 1024 * 150; // 150MB - DJ sona music = largest file
+	private static final int DIR_SIZE = 20;
+	private static final int FILE_SIZE = 44;
 	private final Path location;
 	private final String name;
 	private final MappedByteBuffer buffer;
-	private final Map<String, ManifestEntry> fileEntryMap = new HashMap<>();
-	private DirEntry[] dirEntries;
-	private ManifestEntry[] manifestEntries;
-	private String[] strings;
+	private int dirCount;
+	private int dirsOffset;
+	private int fileCount;
+	private int filesOffset;
+	// Absolute position of each string, plus one past the end of the table. Strings are null terminated.
+	private int[] stringOffsets;
+	// Directory containing each file or directory, -1 for none
+	private int[] fileParents;
+	private int[] dirParents;
+	// Open addressing hash index of files and directories keyed by parent and name. file + 1 for files, -(dir + 1) for
+	// directories, 0 for empty slots.
+	private int[] childIndex;
+	// Built on first use
+	private String[] dirPaths;
+	// Run after the next force
+	private final List<Runnable> afterForce = new ArrayList<>();
 
 	public ReleaseManifest(Path location) {
+		this(location, false);
+	}
+
+	private ReleaseManifest(Path location, boolean readOnly) {
 		Path backup = location.getParent().resolve("releasemanifest.bak");
-		if (!Files.exists(backup)) {
+		if (!readOnly && !Files.exists(backup)) {
 			try {
 				Files.copy(location, backup);
 			} catch (IOException e) {
@@ -34,8 +60,8 @@ public class ReleaseManifest {
 		String name = location.toString().replace("\\", "/");
 		this.name = name.substring(name.lastIndexOf('/', name.lastIndexOf('/') - 1) + 1);
 		MappedByteBuffer b;
-		try (RandomAccessFile file = new RandomAccessFile(location.toFile(), "rw")) {
-			b = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+		try (RandomAccessFile file = new RandomAccessFile(location.toFile(), readOnly ? "r" : "rw")) {
+			b = file.getChannel().map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, file.length());
 		} catch (IOException e) {
 			throw new RuntimeException("Failed to open RAF file " + location, e);
 		}
@@ -45,40 +71,125 @@ public class ReleaseManifest {
 		sanityCheck();
 	}
 
+	/**
+	 * Opens a manifest without backing it up or allowing changes, eg the pristine copy of an earlier release
+	 */
+	public static ReleaseManifest openReadOnly(Path location) {
+		return new ReleaseManifest(location, true);
+	}
+
+	/**
+	 * @return the unmodified manifest for the release containing the given manifest
+	 */
+	public static Path pristineLocation(Path location) {
+		Path backup = location.getParent().resolve("releasemanifest.bak");
+		return Files.exists(backup) ? backup : location;
+	}
+
 	public void sanityCheck() {
-		for (ManifestEntry manifestEntry : manifestEntries) {
-			manifestEntry.sanityCheck();
+		for (int i = 0; i < dirCount; i++) {
+			int nameIndex = new DirEntry(i).nameIndex();
+			if (nameIndex < 0 || nameIndex >= stringOffsets.length - 1) {
+				throw new RuntimeException("Name index " + nameIndex + " out of range for directory " + i);
+			}
+		}
+		for (int i = 0; i < fileCount; i++) {
+			new ManifestEntry(i).sanityCheck();
 		}
 	}
 
+	/**
+	 * @return uncompressed size of the given file according to the manifest, or -1 if it is not listed
+	 */
+	public synchronized int getSize(String fullName) {
+		int file = find(fullName);
+		return file == -1 ? -1 : new ManifestEntry(file).getSize();
+	}
+
 	public boolean setSize(nallar.leagueskin.riotfiles.FileEntry entry) {
 		String fullName = entry.getPath();
 		int compressedSize = entry.getSizeOnDisk();
-		ManifestEntry manifestEntry = fileEntryMap.get(fullName);
-		if (manifestEntry == null) {
+		int file = find(fullName);
+		if (file == -1) {
 			return false;
 		}
-		if (manifestEntry.compressedSize != compressedSize) {
-			try {
-				int uncompressedSize = entry.getDecompressedBytes().length;
-				return manifestEntry.setSize(compressedSize, uncompressedSize, buffer);
-			} catch (Exception e) {
-				Log.error("Failed to correct manifest for " + entry, e);
+		ManifestEntry manifestEntry = new ManifestEntry(file);
+		synchronized (this) {
+			if (manifestEntry.getCompressedSize() == compressedSize) {
+				return false;
 			}
 		}
+		try {
+			// Decompressed outside the lock, RAFs are opened in parallel
+			int uncompressedSize = entry.getDecompressedSize();
+			synchronized (this) {
+				return manifestEntry.setSize(compressedSize, uncompressedSize);
+			}
+		} catch (Exception e) {
+			Log.error("Failed to correct manifest for " + entry, e);
+		}
 		return false;
 	}
 
-	public boolean setSize(String fullName, int compressedSize, int uncompressedSize) {
+	public Path getLocation() {
+		return location;
+	}
+
+	/**
+	 * @return offset of the given file's entry in the manifest, used to journal changes to it
+	 */
+	public int getOffset(String fullName) {
+		int file = find(fullName);
+		if (file == -1) {
+			throw new RuntimeException("Didn't find " + fullName + " in releasemanifest");
+		}
+		return new ManifestEntry(file).offset;
+	}
+
+	/**
+	 * Sets the sizes and md5 of the entry at the given offset, as returned by {@link #getOffset}
+	 */
+	public synchronized void setSizeAt(int offset, int uncompressedSize, int compressedSize, byte[] md5) {
+		int file = (offset - filesOffset) / FILE_SIZE;
+		if (file < 0 || file >= fileCount || filesOffset + file * FILE_SIZE != offset) {
+			throw new RuntimeException("No releasemanifest entry at offset " + offset);
+		}
+		ManifestEntry manifestEntry = new ManifestEntry(file);
+		manifestEntry.setSize(compressedSize, uncompressedSize);
+		manifestEntry.setMd5(md5);
+	}
+
+	/**
+	 * Forces changes to disk. Changes made by updates are only forced once per install.
+	 */
+	public void force() {
+		List<Runnable> forced;
+		synchronized (this) {
+			buffer.force();
+			forced = new ArrayList<>(afterForce);
+			afterForce.clear();
+		}
+		forced.forEach(Runnable::run);
+	}
+
+	/**
+	 * Runs the given task once changes made so far have been forced to disk
+	 */
+	public synchronized void whenForced(Runnable task) {
+		afterForce.add(task);
+	}
+
+	public synchronized boolean setSize(String fullName, int compressedSize, int uncompressedSize) {
 		if (!fullName.startsWith("/")) {
 			throw new RuntimeException("Must use full name, not relative. Got " + fullName);
 		}
-		ManifestEntry manifestEntry = fileEntryMap.get(fullName);
-		if (manifestEntry == null) {
+		int file = find(fullName);
+		if (file == -1) {
 			throw new RuntimeException("Didn't find " + fullName + " in releasemanifest");
 		}
-		if (manifestEntry.compressedSize != compressedSize) {
-			return manifestEntry.setSize(compressedSize, uncompressedSize, buffer);
+		ManifestEntry manifestEntry = new ManifestEntry(file);
+		if (manifestEntry.getCompressedSize() != compressedSize) {
+			return manifestEntry.setSize(compressedSize, uncompressedSize);
 		}
 		return false;
 	}
@@ -112,214 +223,483 @@ public class ReleaseManifest {
 		Log.trace("Directories: " + directoryCount);
 		//checkCount -= directoryCount;
 
-		dirEntries = new DirEntry[directoryCount];
-		for (int i = 0; i < directoryCount; i++) {
-			dirEntries[i] = new DirEntry(buffer);
-		}
-
-		final int fileHeaderPos = dirHeaderPos + 4 + (directoryCount * 20);
-		if (buffer.position() != fileHeaderPos) {
-			Log.warn("Unexpected fileHeaderPos, expected 16 got " + buffer.position());
-		}
-		int fileCount = buffer.getInt();
+		final int fileHeaderPos = dirHeaderPos + 4 + (directoryCount * DIR_SIZE);
+		int fileCount = buffer.getInt(fileHeaderPos);
 		checkCount -= fileCount;
 		if (checkCount != 0) {
 			//throw new RuntimeException("Mismatch! " + checkCount);
 			// This always fails... is entry count not correct?
 		}
 
-		manifestEntries = new ManifestEntry[fileCount];
-		for (int i = 0; i < fileCount; i++) {
-			manifestEntries[i] = new ManifestEntry(buffer);
+		final int stringHeaderPos = fileHeaderPos + 4 + (fileCount * FILE_SIZE);
+		if (stringHeaderPos + 8 > buffer.limit()) {
+			throw new RuntimeException("Truncated releasemanifest, " + fileCount + " files don't fit in " + buffer.limit() + " bytes");
+		}
+		int stringCount = buffer.getInt(stringHeaderPos);
+		// Followed by an unknown int
+
+		this.dirCount = directoryCount;
+		this.dirsOffset = dirHeaderPos + 4;
+		this.fileCount = fileCount;
+		this.filesOffset = fileHeaderPos + 4;
+		this.dirPaths = new String[directoryCount];
+
+		// IndexCache already checks size and modification time, so only the header and directory table are checked
+		// rather than the string table, which would cost as much as indexing it
+		CRC32 crc32 = new CRC32();
+		IndexCache.checksum(crc32, buffer, 0, fileHeaderPos + 4);
+		IndexCache.checksum(crc32, buffer, stringHeaderPos, 8);
+		long cacheKey = crc32.getValue();
+		ByteBuffer cached = IndexCache.load("manifest", location, cacheKey);
+		if (cached != null) {
+			stringOffsets = IndexCache.getInts(cached);
+			fileParents = IndexCache.getInts(cached);
+			dirParents = IndexCache.getInts(cached);
+			childIndex = IndexCache.getInts(cached);
+		} else {
+			stringOffsets = indexStrings(stringHeaderPos + 8, stringCount);
+			buildTree();
+			buildChildIndex();
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				IndexCache.putInts(out, stringOffsets);
+				IndexCache.putInts(out, fileParents);
+				IndexCache.putInts(out, dirParents);
+				IndexCache.putInts(out, childIndex);
+				IndexCache.store("manifest", location, cacheKey, bytes.toByteArray());
+			} catch (IOException e) {
+				throw Throw.sneaky(e);
+			}
 		}
+	}
 
-		final int stringHeaderPos = fileHeaderPos + 4 + (fileCount * 44);
-		if (buffer.position() != stringHeaderPos) {
-			Log.warn("Unexpected fileHeaderPos, expected 16 got " + buffer.position());
+	/**
+	 * Finds where each string starts in one pass over the string table, copied out in chunks
+	 */
+	private int[] indexStrings(int start, int stringCount) {
+		int[] offsets = new int[stringCount + 1];
+		ByteBuffer table = buffer.duplicate();
+		table.position(start);
+		byte[] chunk = new byte[64 * 1024];
+		int found = 0;
+		offsets[found++] = start;
+		int chunkStart = start;
+		while (found <= stringCount && table.hasRemaining()) {
+			int n = Math.min(chunk.length, table.remaining());
+			table.get(chunk, 0, n);
+			for (int i = 0; i < n && found <= stringCount; i++) {
+				if (chunk[i] == 0) {
+					offsets[found++] = chunkStart + i + 1;
+				}
+			}
+			chunkStart += n;
 		}
-		int stringCount = buffer.getInt();
-		buffer.getInt(); //Unknown int.
+		if (found <= stringCount) {
+			throw new RuntimeException("Found " + (found - 1) + " strings in releasemanifest, expected " + stringCount);
+		}
+		return offsets;
+	}
 
-		strings = new String[stringCount];
+	/**
+	 * Finds the parent of each directory and file
+	 */
+	private void buildTree() {
+		int[] fileParents = new int[fileCount];
+		int[] dirParents = new int[dirCount];
+		Arrays.fill(fileParents, -1);
+		Arrays.fill(dirParents, -1);
+		for (int dir = 0; dir < dirCount; dir++) {
+			DirEntry entry = new DirEntry(dir);
+			int subdirIndex = entry.subdirIndex();
+			int subdirCount = entry.subdirCount();
+			int fileIndex = entry.fileIndex();
+			int fileCount = entry.fileCount();
+			if (subdirIndex < 0 || subdirCount < 0 || subdirIndex + subdirCount > dirCount || fileIndex < 0 || fileCount < 0 || fileIndex + fileCount > this.fileCount) {
+				throw new RuntimeException("Directory out of range: " + entry);
+			}
+			for (int i = subdirIndex; i < subdirIndex + subdirCount; i++) {
+				dirParents[i] = dir;
+			}
+			for (int i = fileIndex; i < fileIndex + fileCount; i++) {
+				fileParents[i] = dir;
+			}
+		}
+		this.fileParents = fileParents;
+		this.dirParents = dirParents;
+	}
+
+	/**
+	 * Indexes every file and directory by its parent and name
+	 */
+	private void buildChildIndex() {
+		int[] childIndex = new int[Integer.highestOneBit(Math.max(fileCount + dirCount, 1)) << 2];
+		int mask = childIndex.length - 1;
+		for (int dir = 0; dir < dirCount; dir++) {
+			int i = childHash(dirParents[dir], stringHash(dirNameIndex(dir))) & mask;
+			while (childIndex[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			childIndex[i] = -(dir + 1);
+		}
+		for (int file = 0; file < fileCount; file++) {
+			int i = childHash(fileParents[file], stringHash(fileNameIndex(file))) & mask;
+			while (childIndex[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			childIndex[i] = file + 1;
+		}
+		this.childIndex = childIndex;
+	}
 
-		byte[] buf = new byte[256];
+	private static int childHash(int parent, int nameHash) {
+		int hash = nameHash * 31 + parent;
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
 
-		for (int i = 0; i < stringCount; i++) {
-			int part = 0;
-			byte read;
-			do {
-				read = buffer.get();
-				buf[part++] = read;
-			} while (read != 0);
-			strings[i] = new String(buf, 0, part - 1);
+	/**
+	 * FNV-1a hash of a string in the table's UTF-8 bytes
+	 */
+	private int stringHash(int index) {
+		int hash = 0x811C9DC5;
+		if (index == 0) {
+			return hash;
 		}
+		for (int i = stringOffsets[index], end = stringOffsets[index + 1] - 1; i < end; i++) {
+			hash = (hash ^ (buffer.get(i) & 0xff)) * 0x01000193;
+		}
+		return hash;
+	}
 
-		assert buffer.remaining() == 0;
+	/**
+	 * FNV-1a hash of part of a path encoded as UTF-8, the same as {@link #stringHash} for an equal string
+	 */
+	private static int pathHash(CharSequence path, int start, int end) {
+		int hash = 0x811C9DC5;
+		for (int i = start; i < end; ) {
+			int codePoint = Character.codePointAt(path, i);
+			i += Character.charCount(codePoint);
+			int length = Raf.utf8Length(codePoint);
+			for (int k = 0; k < length; k++) {
+				hash = (hash ^ Raf.utf8Byte(codePoint, length, k)) * 0x01000193;
+			}
+		}
+		return hash;
+	}
 
-		for (int i = 0; i < directoryCount; i++) {
-			DirEntry entry = dirEntries[i];
-			if (entry.nameIndex == 0) {
-				entry.name = "";
-			} else {
-				entry.name = strings[entry.nameIndex];
+	/**
+	 * @param parent directory, or -1 for files not in any directory
+	 * @return index of the file with the given name in the directory, or -1
+	 */
+	private int findFile(int parent, CharSequence path, int start, int end) {
+		int mask = childIndex.length - 1;
+		for (int i = childHash(parent, pathHash(path, start, end)) & mask; childIndex[i] != 0; i = (i + 1) & mask) {
+			int file = childIndex[i] - 1;
+			if (file >= 0 && fileParents[file] == parent && stringEquals(fileNameIndex(file), path, start, end)) {
+				return file;
 			}
 		}
+		return -1;
+	}
 
-		for (int i = 0; i < fileCount; i++) {
-			ManifestEntry entry = manifestEntries[i];
-			if (entry.nameIndex == 0) {
-				entry.name = "";
-			} else {
-				entry.name = strings[entry.nameIndex];
+	/**
+	 * @return index of the subdirectory with the given name in the directory, or -1
+	 */
+	private int findDirectory(int parent, CharSequence path, int start, int end) {
+		int mask = childIndex.length - 1;
+		for (int i = childHash(parent, pathHash(path, start, end)) & mask; childIndex[i] != 0; i = (i + 1) & mask) {
+			int dir = -childIndex[i] - 1;
+			if (dir >= 0 && dirParents[dir] == parent && stringEquals(dirNameIndex(dir), path, start, end)) {
+				return dir;
 			}
 		}
+		return -1;
+	}
+
+	private int fileNameIndex(int file) {
+		return buffer.getInt(filesOffset + file * FILE_SIZE);
+	}
 
-		recursiveDirectorySearch();
+	private int dirNameIndex(int dir) {
+		return buffer.getInt(dirsOffset + dir * DIR_SIZE);
+	}
 
-		for (ManifestEntry manifestEntry : manifestEntries) {
-			fileEntryMap.put(manifestEntry.getPath(), manifestEntry);
+	private String string(int index) {
+		if (index == 0) {
+			return "";
 		}
+		int start = stringOffsets[index];
+		byte[] bytes = new byte[stringOffsets[index + 1] - start - 1];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(start + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
 	}
 
-	private void recursiveDirectorySearch() {
-		recursiveDirectorySearch(0, null);
+	/**
+	 * Compares a string in the table to part of a path as UTF-8, without decoding it
+	 */
+	private boolean stringEquals(int index, CharSequence path, int start, int end) {
+		int offset = index == 0 ? 0 : stringOffsets[index];
+		int length = index == 0 ? 0 : stringOffsets[index + 1] - offset - 1;
+		int position = 0;
+		for (int i = start; i < end; ) {
+			int codePoint = Character.codePointAt(path, i);
+			i += Character.charCount(codePoint);
+			int bytes = Raf.utf8Length(codePoint);
+			if (position + bytes > length) {
+				return false;
+			}
+			for (int k = 0; k < bytes; k++) {
+				if ((buffer.get(offset + position++) & 0xff) != Raf.utf8Byte(codePoint, bytes, k)) {
+					return false;
+				}
+			}
+		}
+		return position == length;
 	}
 
-	private DirEntry recursiveDirectorySearch(int entryNumber, DirEntry lastDir) {
-		DirEntry entry = this.dirEntries[entryNumber];
-		DirEntry currentEntry = entry;
-		int fileOffset = entry.fileIndex;
-		if (lastDir != null) {
-			int lastFileOffset = lastDir.fileIndex;
-			for (int fiOffset = lastFileOffset; fiOffset < fileOffset; fiOffset++) {
-				ManifestEntry manifestEntry = manifestEntries[fiOffset];
-				manifestEntry.parentFolder = lastDir;
-				lastDir.files.add(manifestEntry);
+	/**
+	 * Finds a file through the child index, one probe per path segment, without allocating
+	 *
+	 * @param fullName full path, eg /DATA/Characters/Corki/Corki.inibin
+	 * @return the file's index, or -1 if the manifest does not list it
+	 */
+	int find(CharSequence fullName) {
+		if (fullName.length() == 0 || fullName.charAt(0) != '/') {
+			return findFile(-1, fullName, 0, fullName.length());
+		}
+		int dir = dirCount == 0 ? -1 : 0;
+		int start = 1;
+		while (dir != -1) {
+			int end = start;
+			while (end < fullName.length() && fullName.charAt(end) != '/') {
+				end++;
+			}
+			if (end == fullName.length()) {
+				return findFile(dir, fullName, start, end);
 			}
+			dir = findDirectory(dir, fullName, start, end);
+			start = end + 1;
 		}
-		try {
-			for (int dirOffset = 0; dirOffset < entry.subdirCount; dirOffset++) {
-				int innerDirEntry = entry.subdirIndex + dirOffset;
-				DirEntry nextEntry = dirEntries[innerDirEntry];
-				nextEntry.parentFolder = entry;
-				currentEntry = recursiveDirectorySearch(innerDirEntry, currentEntry);
+		return -1;
+	}
+
+	/**
+	 * @param path full path of a directory, eg /DATA/Characters/Corki
+	 * @return the directory, or null if the manifest does not list it
+	 */
+	public DirEntry getDirectory(CharSequence path) {
+		int dir = dirCount == 0 ? -1 : 0;
+		int start = path.length() > 0 && path.charAt(0) == '/' ? 1 : 0;
+		while (dir != -1 && start < path.length()) {
+			int end = start;
+			while (end < path.length() && path.charAt(end) != '/') {
+				end++;
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
+			dir = findDirectory(dir, path, start, end);
+			start = end + 1;
 		}
-		return currentEntry;
+		return dir == -1 ? null : new DirEntry(dir);
+	}
+
+	/**
+	 * Whether a file has the same version, md5 and sizes in both manifests
+	 */
+	boolean sameContents(int file, ReleaseManifest other, int otherFile) {
+		int offset = filesOffset + file * FILE_SIZE;
+		int otherOffset = other.filesOffset + otherFile * FILE_SIZE;
+		// version and md5[16]
+		for (int i = 4; i < 24; i += 4) {
+			if (buffer.getInt(offset + i) != other.buffer.getInt(otherOffset + i)) {
+				return false;
+			}
+		}
+		// size and compressedSize, skipping flags
+		return buffer.getLong(offset + 28) == other.buffer.getLong(otherOffset + 28);
 	}
 
 	public List<String> getFileNames() {
-		List<String> names = new ArrayList<>();
-		for (ManifestEntry manifestEntry : manifestEntries) {
-			names.add(manifestEntry.getPath());
+		List<String> names = new ArrayList<>(fileCount);
+		for (int i = 0; i < fileCount; i++) {
+			names.add(new ManifestEntry(i).getPath());
 		}
 		return names;
 	}
 
-	public static class DirEntry {
-		public List<ManifestEntry> files = new ArrayList<>();
-		public DirEntry parentFolder;
-		String name;
-		int nameIndex;
-		int subdirIndex;
-		int subdirCount;
-		int fileIndex;
-		int fileCount;
+	/**
+	 * View of a directory record in the mapped manifest
+	 */
+	public class DirEntry {
+		final int index;
+		final int offset;
+
+		DirEntry(int index) {
+			this.index = index;
+			this.offset = dirsOffset + index * DIR_SIZE;
+		}
+
+		int nameIndex() {
+			return dirNameIndex(index);
+		}
+
+		int subdirIndex() {
+			return buffer.getInt(offset + 4);
+		}
+
+		int subdirCount() {
+			return buffer.getInt(offset + 8);
+		}
+
+		int fileIndex() {
+			return buffer.getInt(offset + 12);
+		}
+
+		int fileCount() {
+			return buffer.getInt(offset + 16);
+		}
 
-		public DirEntry() {
+		public String getName() {
+			return string(nameIndex());
 		}
 
-		public DirEntry(ByteBuffer buffer) {
-			nameIndex = buffer.getInt();
-			subdirIndex = buffer.getInt();
-			subdirCount = buffer.getInt();
-			fileIndex = buffer.getInt();
-			fileCount = buffer.getInt();
+		public DirEntry getParentFolder() {
+			return dirParents[index] == -1 ? null : new DirEntry(dirParents[index]);
 		}
 
 		public String getPath() {
-			if (this.parentFolder != null) {
-				return parentFolder.getPath() + '/' + name;
+			String path = dirPaths[index];
+			if (path == null) {
+				DirEntry parentFolder = getParentFolder();
+				path = dirPaths[index] = parentFolder == null ? getName() : parentFolder.getPath() + '/' + getName();
+			}
+			return path;
+		}
+
+		public List<DirEntry> getSubdirectories() {
+			List<DirEntry> subdirs = new ArrayList<>(subdirCount());
+			for (int i = subdirIndex(); i < subdirIndex() + subdirCount(); i++) {
+				subdirs.add(new DirEntry(i));
 			}
-			return name;
+			return subdirs;
+		}
+
+		/**
+		 * @return full paths of the files directly in this directory
+		 */
+		public List<String> getFileNames() {
+			List<String> names = new ArrayList<>(fileCount());
+			for (int i = fileIndex(); i < fileIndex() + fileCount(); i++) {
+				names.add(new ManifestEntry(i).getPath());
+			}
+			return names;
 		}
 
 		public String toString() {
 			return
-				name +
-					" nameIdx: " + nameIndex +
-					" subdirIdx: " + subdirIndex +
-					" subdirCount: " + subdirCount +
-					" fileIdx: " + fileIndex +
-					" fileCount: " + fileCount;
-		}
-	}
-
-	private static class ManifestEntry {
-		public DirEntry parentFolder;
-		int offset;
-		String name;
-		int nameIndex;
-		int version;
-		int size;
-		int compressedSize;
-
-		public ManifestEntry(ByteBuffer buffer) {
-			offset = buffer.position();
-			nameIndex = buffer.getInt();
-			version = buffer.getInt();
-			buffer.position(buffer.position() + 16); // skip md5[16]
-			buffer.getInt(); // skip uint flags
-			size = buffer.getInt();
-			compressedSize = buffer.getInt();
-			buffer.getInt(); // skip uint unk1
-			buffer.getInt(); // skip uint unk4
+				getName() +
+					" nameIdx: " + nameIndex() +
+					" subdirIdx: " + subdirIndex() +
+					" subdirCount: " + subdirCount() +
+					" fileIdx: " + fileIndex() +
+					" fileCount: " + fileCount();
+		}
+	}
+
+	/**
+	 * View of a file record in the mapped manifest
+	 */
+	private class ManifestEntry {
+		final int index;
+		final int offset;
+
+		ManifestEntry(int index) {
+			this.index = index;
+			this.offset = filesOffset + index * FILE_SIZE;
+		}
+
+		int nameIndex() {
+			return fileNameIndex(index);
+		}
+
+		int getVersion() {
+			return buffer.getInt(offset + 4);
+		}
+
+		int getSize() {
+			return buffer.getInt(offset + 28);
+		}
+
+		int getCompressedSize() {
+			return buffer.getInt(offset + 32);
+		}
+
+		DirEntry getParentFolder() {
+			return fileParents[index] == -1 ? null : new DirEntry(fileParents[index]);
 		}
 
 		public String toString() {
 			return
 				getPath() +
-					" nameIdx: " + nameIndex +
-					" parentFolder: " + parentFolder +
-					" version: " + version +
-					" size: " + size +
-					" compressedSize: " + compressedSize;
+					" nameIdx: " + nameIndex() +
+					" parentFolder: " + getParentFolder() +
+					" version: " + getVersion() +
+					" size: " + getSize() +
+					" compressedSize: " + getCompressedSize();
 		}
 
 		public String getPath() {
-			if (this.parentFolder != null) {
-				return parentFolder.getPath() + '/' + name;
+			DirEntry parentFolder = getParentFolder();
+			if (parentFolder != null) {
+				return parentFolder.getPath() + '/' + string(nameIndex());
 			}
-			return name;
+			return string(nameIndex());
 		}
 
-		public boolean setSize(int compressedSize, int uncompressedSize, ByteBuffer byteBuffer) {
-			if (size == uncompressedSize && compressedSize == this.compressedSize) {
+		/**
+		 * Must hold the manifest's lock
+		 */
+		boolean setSize(int compressedSize, int uncompressedSize) {
+			if (getSize() == uncompressedSize && compressedSize == getCompressedSize()) {
 				return false;
 			}
-			size = uncompressedSize;
-			this.compressedSize = compressedSize;
-			sanityCheck();
-
-			byteBuffer.position(offset + 28);
-			byteBuffer.putInt(size);
-			byteBuffer.putInt(compressedSize);
+			checkSizes(compressedSize, uncompressedSize);
+			buffer.putInt(offset + 28, uncompressedSize);
+			buffer.putInt(offset + 32, compressedSize);
 			return true;
 		}
 
-		public void sanityCheck() {
+		/**
+		 * Must hold the manifest's lock
+		 */
+		void setMd5(byte[] md5) {
+			if (md5.length != 16) {
+				throw new IllegalArgumentException("Expected 16 byte md5, got " + md5.length);
+			}
+			for (int i = 0; i < 16; i++) {
+				buffer.put(offset + 8 + i, md5[i]);
+			}
+		}
+
+		private void checkSizes(int compressedSize, int size) {
 			if (compressedSize < 0 || compressedSize > EXPECTED_MAX_SIZE) {
 				throw new RuntimeException("Unexpected size: " + compressedSize + " in " + toString());
 			}
 			if (size < 0 || size > EXPECTED_MAX_SIZE) {
 				throw new RuntimeException("Unexpected size: " + size + " in " + toString());
 			}
-			if (name == null || name.isEmpty()) {
+		}
+
+		public void sanityCheck() {
+			if (nameIndex() < 0 || nameIndex() >= stringOffsets.length - 1) {
+				throw new RuntimeException("Name index " + nameIndex() + " out of range for file " + index);
+			}
+			if (nameIndex() == 0) {
 				throw new RuntimeException("No name in " + toString());
 			}
-			if (parentFolder == null) {
+			checkSizes(getCompressedSize(), getSize());
+			if (fileParents[index] == -1) {
 				Log.trace("No parent folder in " + toString()); // Expected? Some .luaobjs aren't in any folders. Why?
 			}
 			if (offset < 1000) {